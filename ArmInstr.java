@@ -0,0 +1,315 @@
+/**
+ * One line of generated ARM assembly: an instruction or a label.
+ *
+ * CodeGen builds a list of these per method, and they are only
+ * rendered to text when the program is written out.
+ */
+class ArmInstr {
+    enum Op {
+        MOV("mov"),
+        MVN("mvn"),
+        ADD("add"),
+        SUB("sub"),
+        RSB("rsb"),
+        MUL("mul"),
+        AND("and"),
+        ORR("orr"),
+        CMP("cmp"),
+        CMN("cmn"),
+        LDR("ldr"),
+        STR("str"),
+        B("b"),
+        BL("bl"),
+        BX("bx"),
+        STMFD("stmfd"),
+        LDMFD("ldmfd"),
+        // Places the literal pool of the code before it
+        LTORG(".ltorg"),
+        LABEL("");
+
+        private String mnemonic;
+
+        private Op(String mnemonic) {
+            this.mnemonic = mnemonic;
+        }
+
+        @Override
+        public String toString() {
+            return mnemonic;
+        }
+    }
+
+    enum Cond {
+        AL(""),
+        EQ("eq"),
+        NE("ne"),
+        LT("lt"),
+        LE("le"),
+        GT("gt"),
+        GE("ge");
+
+        private String suffix;
+
+        private Cond(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * The condition to test with the operands of the comparison swapped
+         */
+        public Cond swapped() {
+            switch (this) {
+                case LT:
+                    return GT;
+                case GT:
+                    return LT;
+                case LE:
+                    return GE;
+                case GE:
+                    return LE;
+                default:
+                    return this;
+            }
+        }
+
+        /**
+         * The condition that holds exactly when this one doesn't
+         */
+        public Cond inverse() {
+            switch (this) {
+                case EQ:
+                    return NE;
+                case NE:
+                    return EQ;
+                case LT:
+                    return GE;
+                case GE:
+                    return LT;
+                case LE:
+                    return GT;
+                case GT:
+                    return LE;
+                default:
+                    throw new IllegalStateException("AL has no inverse");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return suffix;
+        }
+    }
+
+    /**
+     * An operand: a register, an immediate, a memory location
+     * (register + offset), a label, a data section entry, a register list,
+     * a constant from the literal pool or a register shifted left
+     */
+    static class Operand {
+        enum Kind { REG, IMM, MEM, LABEL, DATA, REGLIST, LITERAL, SHIFTED }
+
+        public final Kind kind;
+        public final String name;
+        public final int value;
+
+        private static final Operand[] REGISTERS = new Operand[13];
+        static {
+            for (int i = 0; i < REGISTERS.length; i++) {
+                REGISTERS[i] = new Operand(Kind.REG, "r" + i, i);
+            }
+        }
+
+        public static final Operand A1 = new Operand(Kind.REG, "a1", 0);
+        public static final Operand A2 = new Operand(Kind.REG, "a2", 1);
+        public static final Operand FP = new Operand(Kind.REG, "fp", 11);
+        public static final Operand IP = new Operand(Kind.REG, "ip", 12);
+        public static final Operand SP = new Operand(Kind.REG, "sp", 13);
+        public static final Operand LR = new Operand(Kind.REG, "lr", 14);
+
+        private Operand(Kind kind, String name, int value) {
+            this.kind = kind;
+            this.name = name;
+            this.value = value;
+        }
+
+        public static Operand reg(int idx) {
+            return REGISTERS[idx];
+        }
+
+        public static Operand imm(int value) {
+            return new Operand(Kind.IMM, null, value);
+        }
+
+        /**
+         * Whether a value fits in an immediate operand:
+         * 8 bits rotated right by an even number of bits
+         */
+        public static boolean isEncodable(int value) {
+            for (int rot = 0; rot < 32; rot += 2) {
+                if ((Integer.rotateLeft(value, rot) & ~0xff) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A constant ldr loads from the literal pool
+         */
+        public static Operand literal(int value) {
+            return new Operand(Kind.LITERAL, null, value);
+        }
+
+        /**
+         * A register shifted left by a constant, as the last operand
+         */
+        public static Operand shifted(Operand reg, int amount) {
+            return new Operand(Kind.SHIFTED, reg.name, amount);
+        }
+
+        public static Operand mem(Operand base, int offset) {
+            return new Operand(Kind.MEM, base.name, offset);
+        }
+
+        public static Operand label(String name) {
+            return new Operand(Kind.LABEL, name, 0);
+        }
+
+        /**
+         * Local labels are numbered and get a leading dot
+         */
+        public static Operand label(int idx) {
+            return new Operand(Kind.LABEL, "." + idx, idx);
+        }
+
+        public static Operand data(int idx) {
+            return new Operand(Kind.DATA, null, idx);
+        }
+
+        public static Operand regList(String regs) {
+            return new Operand(Kind.REGLIST, regs, 0);
+        }
+
+        public boolean isReg() {
+            return kind == Kind.REG;
+        }
+
+        public void render(StringBuilder sb) {
+            switch (kind) {
+                case REG:
+                case LABEL:
+                    sb.append(name);
+                    break;
+
+                case IMM:
+                    sb.append('#').append(value);
+                    break;
+
+                case MEM:
+                    sb.append('[').append(name).append(",#").append(value).append(']');
+                    break;
+
+                case DATA:
+                    sb.append("=L").append(value);
+                    break;
+
+                case LITERAL:
+                    sb.append('=').append(value);
+                    break;
+
+                case SHIFTED:
+                    sb.append(name).append(", lsl #").append(value);
+                    break;
+
+                case REGLIST:
+                    sb.append('{').append(name).append('}');
+                    break;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            this.render(sb);
+            return sb.toString();
+        }
+    }
+
+    public Op op;
+    public Cond cond = Cond.AL;
+    public Operand[] operands;
+
+    // Separate operands by ", " instead of ",".
+    // Only kept so that the text output stays the same.
+    public boolean spaced = false;
+
+    // A register to register move that hands the value over,
+    // the source register is not used afterwards
+    public boolean transfer = false;
+
+    public ArmInstr(Op op, Operand... operands) {
+        this.op = op;
+        this.operands = operands;
+    }
+
+    public ArmInstr when(Cond cond) {
+        this.cond = cond;
+        return this;
+    }
+
+    public ArmInstr spaced() {
+        this.spaced = true;
+        return this;
+    }
+
+    public ArmInstr transfer() {
+        this.transfer = true;
+        return this;
+    }
+
+    public static ArmInstr label(Operand label) {
+        return new ArmInstr(Op.LABEL, label);
+    }
+
+    public void render(StringBuilder sb) {
+        if (op == Op.LABEL) {
+            // Local labels are indented
+            if (operands[0].name.startsWith(".")) {
+                sb.append('\t');
+            }
+            sb.append(operands[0].name).append(":\n");
+            return;
+        }
+
+        sb.append('\t').append(op).append(cond);
+        if (operands.length > 0) {
+            sb.append(' ');
+        }
+
+        for (int i = 0; i < operands.length; i++) {
+            if (i > 0) {
+                sb.append(spaced ? ", " : ",");
+            }
+
+            operands[i].render(sb);
+
+            if (i == 0 && (op == Op.STMFD || op == Op.LDMFD)) {
+                // Write back
+                sb.append('!');
+            }
+        }
+
+        if (op == Op.BL) {
+            sb.append("(PLT)");
+        }
+
+        sb.append('\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        this.render(sb);
+        return sb.toString();
+    }
+}
@@ -1,7 +1,8 @@
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 
 // Generates the basic blocks from IR3
 class BasicBlock {
@@ -9,12 +10,11 @@ class BasicBlock {
     public ArrayList<BasicBlock> previous = new ArrayList<>();
     public ArrayList<BasicBlock> next = new ArrayList<>();
 
-    // Liveness information
-    public ArrayList<String> liveIn = new ArrayList<>();
-    public ArrayList<String> liveOut = new ArrayList<>();
-    public HashSet<String> gen = new HashSet<>();
-    public HashSet<String> kill = new HashSet<>();
-    public boolean hasGenerated = false;
+    // Liveness information, indexed by CMtd3.getVarIndex
+    public BitSet liveIn = new BitSet();
+    public BitSet liveOut = new BitSet();
+    public BitSet gen = new BitSet();
+    public BitSet kill = new BitSet();
 
     // Stmts in Block
     public ArrayList<Stmt3> stmts = new ArrayList<>();
@@ -22,22 +22,22 @@ class BasicBlock {
     // Bookkeeping
     public boolean recToggle = false;
     public boolean isFirst = false;
+    private boolean queued = false;
 
-    /**
-     * State of registers after running basic block
-     */
-    public CodeGen.BasicBlockState bbsOut;
+    private CMtd3 mtd;
 
-    public BasicBlock() { }
+    public BasicBlock(CMtd3 mtd) {
+        this.mtd = mtd;
+    }
 
     /**
      * Generates a Control Flow Graph from a CMtd3
-     * Returns the first block of the CFG
+     * Returns all blocks in the order of the statements,
+     * starting with the first block of the CFG
      */
-    public static BasicBlock fromCMtd3(CMtd3 mtd3) {
+    public static ArrayList<BasicBlock> fromCMtd3(CMtd3 mtd3) {
         BasicBlock firstBlock = null;
         BasicBlock curBlock = null;
-        // Last blocks
         ArrayList<BasicBlock> blocks = new ArrayList<>();
 
         HashMap<String, BasicBlock> targetBlocks = new HashMap<>();
@@ -48,7 +48,7 @@ class BasicBlock {
             if (BasicBlock.isLeader(prev, stmt)) {
                 if (firstBlock == null) {
                     // First block creation
-                    firstBlock = new BasicBlock();
+                    firstBlock = new BasicBlock(mtd3);
                     firstBlock.isFirst = true;
                     curBlock = firstBlock;
                     targetBlocks.put(stmt.children.get(0).getLabelledValue(), firstBlock);
@@ -68,7 +68,7 @@ class BasicBlock {
                         //
                     }
 
-                    BasicBlock newBlock = new BasicBlock();
+                    BasicBlock newBlock = new BasicBlock(mtd3);
 
                     if (stmt.type == Stmt3.StmtType.Label) {
                         String lbl = stmt.children.get(0).getLabelledValue();
@@ -95,7 +95,7 @@ class BasicBlock {
 
 
             if (firstBlock == null) {
-                firstBlock = new BasicBlock();
+                firstBlock = new BasicBlock(mtd3);
                 curBlock = firstBlock;
                 blocks.add(curBlock);
             }
@@ -105,23 +105,88 @@ class BasicBlock {
             prev = stmt;
         }
 
+        // A jump at the very end has no leader after it to be connected at
+        if (prev != null && (prev.type == Stmt3.StmtType.IfGoto || prev.type == Stmt3.StmtType.Goto)) {
+            String lbl = (prev.type == Stmt3.StmtType.IfGoto) ? prev.children.get(1).getLabelledValue() : prev.children.get(0).getLabelledValue();
+            if (targetBlocks.containsKey(lbl)) {
+                targetBlocks.get(lbl).previous.add(curBlock);
+                curBlock.next.add(targetBlocks.get(lbl));
+            }
+        }
+
         //System.err.println(firstBlock);
 
-        // Only keep last blocks
-        blocks.removeIf(blk -> !blk.next.isEmpty());
         BasicBlock.analyseLiveness(blocks);
 
-        return firstBlock;
+        return blocks;
     }
 
-    public static void analyseLiveness(ArrayList<BasicBlock> lastBlocks) {
-        ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>(lastBlocks);
+    /**
+     * Backward dataflow over all blocks of a method:
+     * liveOut = union of liveIn of the next blocks
+     * liveIn = gen + (liveOut - kill)
+     * until nothing changes
+     */
+    public static void analyseLiveness(ArrayList<BasicBlock> blocks) {
+        for (BasicBlock blk : blocks) {
+            blk.genGenKill();
+        }
+
+        // Later blocks first, so most blocks are only visited once
+        ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>();
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            blockQueue.add(blocks.get(i));
+            blocks.get(i).queued = true;
+        }
 
         while (!blockQueue.isEmpty()) {
             BasicBlock curBlock = blockQueue.pollFirst();
-            curBlock.genGenKill();
+            curBlock.queued = false;
+
+            curBlock.liveOut.clear();
+            for (BasicBlock nxt : curBlock.next) {
+                curBlock.liveOut.or(nxt.liveIn);
+                nxt.addPhiUses(curBlock, curBlock.liveOut);
+            }
+
+            BitSet newLiveIn = (BitSet) curBlock.liveOut.clone();
+            newLiveIn.andNot(curBlock.kill);
+            newLiveIn.or(curBlock.gen);
+
+            if (newLiveIn.equals(curBlock.liveIn)) {
+                continue;
+            }
+
+            curBlock.liveIn = newLiveIn;
+            for (BasicBlock prev : curBlock.previous) {
+                if (!prev.queued) {
+                    prev.queued = true;
+                    blockQueue.add(prev);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the variables live before each statement,
+     * followed by the ones live at the end of the block
+     */
+    public BitSet[] getLiveSets() {
+        BitSet[] live = new BitSet[stmts.size() + 1];
+        live[stmts.size()] = liveOut;
+
+        for (int i = stmts.size() - 1; i >= 0; i--) {
+            live[i] = (BitSet) live[i + 1].clone();
+
+            int def = this.getDef(stmts.get(i));
+            if (def >= 0) {
+                live[i].clear(def);
+            }
+            this.addUses(stmts.get(i), live[i]);
         }
-    } 
+
+        return live;
+    }
 
     private static boolean isLeader(Stmt3 prev, Stmt3 stmt) {
         if (prev == null) {
@@ -136,20 +201,139 @@ class BasicBlock {
     }
 
     public void genGenKill() {
+        gen.clear();
+        kill.clear();
+
+        BitSet uses = new BitSet();
         for (Stmt3 stmt : stmts) {
-            switch (stmt.type) {
-                case IfGoto:
-                case PrintLn:
-                    // Only read cases
+            uses.clear();
+            this.addUses(stmt, uses);
 
-                case ReadLn:
-                    // Only write cases
+            // Read before any write in this block
+            uses.andNot(kill);
+            gen.or(uses);
 
-                case LAssign:
+            int def = this.getDef(stmt);
+            if (def >= 0) {
+                kill.set(def);
             }
         }
     }
 
+    /**
+     * Returns the label this block starts with, or null
+     */
+    public String getLabel() {
+        if (stmts.isEmpty() || stmts.get(0).type != Stmt3.StmtType.Label) {
+            return null;
+        }
+
+        return stmts.get(0).children.get(0).getLabelledValue();
+    }
+
+    /**
+     * Adds the variables the phis of this block read
+     * when coming from prev (they are live at the end of prev)
+     */
+    public void addPhiUses(BasicBlock prev, BitSet uses) {
+        String lbl = prev.getLabel();
+
+        for (Stmt3 stmt : stmts) {
+            if (stmt.type == Stmt3.StmtType.Label) {
+                continue;
+            } else if (stmt.type != Stmt3.StmtType.Phi) {
+                break;
+            }
+
+            List<Node> args = stmt.children.get(1).children;
+            List<Node> labels = stmt.children.get(2).children;
+            for (int i = 0; i < args.size(); i++) {
+                if (labels.get(i).getLabelledValue().equals(lbl)) {
+                    this.addUses(args.get(i), uses);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the variable written by a statement, or -1
+     */
+    int getDef(Stmt3 stmt) {
+        switch (stmt.type) {
+            case LAssign:
+            case ReadLn:
+            case Phi:
+                return mtd.getVarIndex(stmt.children.get(0).getLabelledValue());
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Adds the variables read by a statement
+     */
+    void addUses(Stmt3 stmt, BitSet uses) {
+        switch (stmt.type) {
+            case LAssign:
+                this.addUses(stmt.children.get(1), uses);
+                break;
+
+            case FAssign:
+                // Skip the field name
+                this.addUses(stmt.children.get(0), uses);
+                this.addUses(stmt.children.get(2), uses);
+                break;
+
+            case Call:
+                // Skip the method name
+                this.addUses(stmt.children.get(1), uses);
+                break;
+
+            case IfGoto:
+            case PrintLn:
+            case ReturnT:
+                this.addUses(stmt.children.get(0), uses);
+                break;
+
+            case Phi:
+                // Read at the end of the previous blocks (see addPhiUses)
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void addUses(Node node, BitSet uses) {
+        switch (node.type) {
+            case Identifier:
+            case Id3:
+            case This:
+                int idx = mtd.getVarIndex(node.getLabelledValue());
+                if (idx >= 0) {
+                    uses.set(idx);
+                }
+                break;
+
+            case Call:
+                // Skip the method name
+                this.addUses(node.children.get(1), uses);
+                break;
+
+            case Field:
+                // Skip the field name
+                this.addUses(node.children.get(0), uses);
+                break;
+
+            default:
+                for (Node child : node.children) {
+                    this.addUses(child, uses);
+                }
+                break;
+        }
+    }
+
     private String toString(boolean curTest) {
         if (recToggle != curTest) {
             return "recurse";
@@ -0,0 +1,130 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles many JLite files in parallel on a bounded thread pool.
+ *
+ * Every file gets its own Compilation, and its outputs are written
+ * next to it the same way the Makefile does it:
+ *   foo.j -> foo.asm (stdout) and foo.asm.ir3 (stderr)
+ * or foo-opt.asm and foo-opt.asm.ir3 with -O.
+ *
+ * Usage: java Parser --batch [-O] [-j threads] [-d outdir] <file or dir>...
+ */
+class BatchCompiler {
+    private boolean optimize = false;
+    private File outputDir = null;
+
+    public BatchCompiler(boolean optimize, File outputDir) {
+        this.optimize = optimize;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Compiles all files, returns the number of files that failed
+     */
+    public int run(List<File> files, int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+
+        for (File file : files) {
+            results.add(pool.submit(() -> this.compile(file)));
+        }
+
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                if (!results.get(i).get()) {
+                    failed++;
+                }
+            } catch (Exception e) {
+                System.err.format("%s: %s\n", files.get(i).getPath(), e.getCause());
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+
+    private boolean compile(File file) throws IOException {
+        ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(outBuffer, true);
+        PrintStream err = new PrintStream(errBuffer, true);
+
+        Compilation compilation = new Compilation(optimize);
+        boolean success;
+
+        try (CharBufferReader source = CharBufferReader.open(file)) {
+            success = compilation.compile(source);
+            compilation.printResults(out, err);
+        } catch (Exception e) {
+            // Syntax errors end up here
+            success = false;
+            out.print(compilation.getMessages());
+            e.printStackTrace(err);
+        }
+
+        File asmFile = this.getOutputFile(file);
+        BatchCompiler.write(asmFile, outBuffer);
+        BatchCompiler.write(new File(asmFile.getPath() + ".ir3"), errBuffer);
+
+        return success;
+    }
+
+    private File getOutputFile(File source) {
+        String name = source.getName().replaceAll("\\.j$", "");
+        name += optimize ? "-opt.asm" : ".asm";
+
+        File dir = (outputDir != null) ? outputDir : source.getAbsoluteFile().getParentFile();
+        return new File(dir, name);
+    }
+
+    private static void write(File file, ByteArrayOutputStream content) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            content.writeTo(os);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean optimize = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File outputDir = null;
+        ArrayList<String> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-O")) {
+                optimize = true;
+            } else if (args[i].equals("-j")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-d")) {
+                outputDir = new File(args[++i]);
+                outputDir.mkdirs();
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        List<File> files = Utils.collectSources(inputs);
+        long start = System.nanoTime();
+        int failed = new BatchCompiler(optimize, outputDir).run(files, threads);
+
+        System.err.format("Compiled %d file(s) on %d thread(s) in %.1f ms, %d with errors\n",
+            files.size(), threads, (System.nanoTime() - start) / 1e6, failed);
+
+        if (optimize) {
+            System.err.print("Peephole rewrites:\n" + Peephole.getStats());
+        }
+    }
+}
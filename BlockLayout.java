@@ -0,0 +1,306 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Block layout on the IR3 of a method
+ *
+ * IR3Gen lays a while loop out with its test at the top, so every
+ * iteration takes the branch into the body and the jump back to the
+ * test. Here, the jump back is replaced with a copy of the test (when it
+ * is short), which leaves the test at the top to only guard the way in.
+ *
+ * Blocks are then chained so that each falls through into the successor
+ * it most likely goes to, taken to be the one that came first (the body
+ * of a loop rather than its exit, and like IR3Gen for an if), and
+ * conditions are inverted where that makes their branch fall through.
+ * Blocks that only jump somewhere else are skipped over.
+ */
+class BlockLayout {
+    // Longest loop test (in statements, without the branch) that is copied
+    private static final int MAX_COPIED = 4;
+
+    private static class Block {
+        String label;
+        int position;
+        ArrayList<Stmt3> body = new ArrayList<>();
+
+        // Branch condition, and where the block goes when it holds
+        Node cond;
+        String onTrue;
+
+        // Where the block goes otherwise (null after a return)
+        String next;
+    }
+
+    public static void run(CMtd3 mtd) {
+        HashMap<String, Block> byLabel = new HashMap<>();
+        ArrayList<Block> blocks = BlockLayout.split(mtd, byLabel);
+        if (blocks.size() < 3) {
+            return;
+        }
+
+        for (Block blk : blocks) {
+            blk.onTrue = BlockLayout.skipJumps(blk.onTrue, byLabel);
+            blk.next = BlockLayout.skipJumps(blk.next, byLabel);
+
+            if (blk.cond != null && blk.onTrue.equals(blk.next)) {
+                blk.cond = null;
+                blk.onTrue = null;
+            }
+        }
+
+        BlockLayout.rotateLoops(blocks, byLabel);
+
+        ArrayList<Block> order = BlockLayout.chain(blocks, byLabel);
+        mtd.stmts = BlockLayout.emit(order);
+    }
+
+    /**
+     * Splits the statements into blocks, each with a label and explicit
+     * successors, followed by an empty block for the end of the method
+     */
+    private static ArrayList<Block> split(CMtd3 mtd, HashMap<String, Block> byLabel) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        Block cur = null;
+
+        for (Stmt3 stmt : mtd.stmts) {
+            if (cur == null || stmt.type == Stmt3.StmtType.Label) {
+                Block blk = new Block();
+                blk.label = (stmt.type == Stmt3.StmtType.Label) ? stmt.children.get(0).getLabelledValue() : mtd.getFreeLabel();
+                blk.position = blocks.size();
+                blocks.add(blk);
+                byLabel.put(blk.label, blk);
+
+                if (cur != null) {
+                    cur.next = blk.label;
+                }
+                cur = blk;
+
+                if (stmt.type == Stmt3.StmtType.Label) {
+                    continue;
+                }
+            }
+
+            switch (stmt.type) {
+                case IfGoto: {
+                    cur.cond = stmt.children.get(0);
+                    cur.onTrue = stmt.children.get(1).getLabelledValue();
+
+                    // The next block falls through from here
+                    Block blk = new Block();
+                    blk.label = mtd.getFreeLabel();
+                    blk.position = blocks.size();
+                    blocks.add(blk);
+                    byLabel.put(blk.label, blk);
+
+                    cur.next = blk.label;
+                    cur = blk;
+                    break;
+                }
+
+                case Goto:
+                    cur.next = stmt.children.get(0).getLabelledValue();
+                    cur = null;
+                    break;
+
+                case ReturnT:
+                case ReturnV:
+                    cur.body.add(stmt);
+                    cur = null;
+                    break;
+
+                default:
+                    cur.body.add(stmt);
+                    break;
+            }
+        }
+
+        // The end of the method, for the last block to fall through into
+        Block end = new Block();
+        end.label = mtd.getFreeLabel();
+        end.position = blocks.size();
+        blocks.add(end);
+        byLabel.put(end.label, end);
+
+        if (cur != null) {
+            cur.next = end.label;
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Follows a label through blocks that only go somewhere else
+     */
+    private static String skipJumps(String lbl, HashMap<String, Block> byLabel) {
+        HashSet<String> seen = new HashSet<>();
+
+        while (lbl != null && seen.add(lbl)) {
+            Block blk = byLabel.get(lbl);
+            if (!blk.body.isEmpty() || blk.cond != null || blk.next == null) {
+                break;
+            }
+            lbl = blk.next;
+        }
+
+        return lbl;
+    }
+
+    /**
+     * Replaces each jump back to a short loop test with a copy of the test
+     */
+    private static void rotateLoops(ArrayList<Block> blocks, HashMap<String, Block> byLabel) {
+        for (Block blk : blocks) {
+            if (blk.cond != null || blk.next == null) {
+                continue;
+            }
+
+            Block test = byLabel.get(blk.next);
+            if (test == blk || test.position > blk.position || test.cond == null || test.body.size() > MAX_COPIED) {
+                continue;
+            }
+
+            for (Stmt3 stmt : test.body) {
+                blk.body.add(BlockLayout.copy(stmt));
+            }
+            blk.cond = BlockLayout.copy(test.cond);
+            blk.onTrue = test.onTrue;
+            blk.next = test.next;
+        }
+    }
+
+    /**
+     * Orders the blocks that can be reached, following the likely
+     * successor of each for as long as it hasn't been placed
+     */
+    private static ArrayList<Block> chain(ArrayList<Block> blocks, HashMap<String, Block> byLabel) {
+        HashSet<Block> reachable = new HashSet<>();
+        ArrayDeque<Block> work = new ArrayDeque<>();
+        reachable.add(blocks.get(0));
+        work.add(blocks.get(0));
+
+        while (!work.isEmpty()) {
+            Block blk = work.poll();
+            for (String lbl : new String[] { blk.onTrue, blk.next }) {
+                if (lbl != null && reachable.add(byLabel.get(lbl))) {
+                    work.add(byLabel.get(lbl));
+                }
+            }
+        }
+
+        // The end of the method stays last
+        Block last = blocks.get(blocks.size() - 1);
+        ArrayList<Block> order = new ArrayList<>();
+        HashSet<Block> placed = new HashSet<>();
+        placed.add(last);
+
+        for (Block seed : blocks) {
+            Block cur = seed;
+
+            while (cur != null && reachable.contains(cur) && placed.add(cur)) {
+                order.add(cur);
+
+                Block likely = null;
+                for (String lbl : new String[] { cur.onTrue, cur.next }) {
+                    Block succ = (lbl != null) ? byLabel.get(lbl) : null;
+                    if (succ != null && !placed.contains(succ)
+                        && (likely == null || succ.position < likely.position)) {
+                        likely = succ;
+                    }
+                }
+                cur = likely;
+            }
+        }
+
+        if (reachable.contains(last)) {
+            order.add(last);
+        }
+
+        return order;
+    }
+
+    private static ArrayList<Stmt3> emit(ArrayList<Block> order) {
+        HashSet<String> targets = new HashSet<>();
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+
+        for (int i = 0; i < order.size(); i++) {
+            Block blk = order.get(i);
+            String following = (i + 1 < order.size()) ? order.get(i + 1).label : null;
+
+            stmts.add(BlockLayout.newStmt(Stmt3.StmtType.Label, new Node(blk.label)));
+            stmts.addAll(blk.body);
+
+            String jump = blk.next;
+            if (blk.cond != null) {
+                Node cond = blk.cond;
+                String target = blk.onTrue;
+
+                if (blk.onTrue.equals(following)) {
+                    cond = BlockLayout.negate(cond);
+                    target = blk.next;
+                    jump = following;
+                }
+
+                stmts.add(BlockLayout.newStmt(Stmt3.StmtType.IfGoto, cond, new Node(target)));
+                targets.add(target);
+            }
+
+            if (jump != null && !jump.equals(following)) {
+                stmts.add(BlockLayout.newStmt(Stmt3.StmtType.Goto, new Node(jump)));
+                targets.add(jump);
+            }
+        }
+
+        stmts.removeIf(stmt ->
+            stmt.type == Stmt3.StmtType.Label && !targets.contains(stmt.children.get(0).getLabelledValue())
+        );
+        return stmts;
+    }
+
+    private static Node negate(Node cond) {
+        switch (cond.type) {
+            case BNeg:
+                return cond.children.get(0);
+
+            case BGrd: {
+                Node flipped = new Node(Node.NodeType.BGrd, cond.getLabelledValue().equals("true") ? "false" : "true");
+                flipped.note = cond.note;
+                return flipped;
+            }
+
+            default: {
+                Node negated = new Node(Node.NodeType.BNeg, cond);
+                negated.note = cond.note;
+                return negated;
+            }
+        }
+    }
+
+    private static Stmt3 newStmt(Stmt3.StmtType type, Node... children) {
+        Stmt3 stmt = new Stmt3(type);
+        for (Node child : children) {
+            stmt.children.add(child);
+        }
+        return stmt;
+    }
+
+    private static Stmt3 copy(Stmt3 stmt) {
+        Stmt3 copied = new Stmt3(stmt.type);
+        for (Node child : stmt.children) {
+            copied.children.add(BlockLayout.copy(child));
+        }
+        return copied;
+    }
+
+    private static Node copy(Node node) {
+        Node copied = new Node(node.type, node.data);
+        copied.note = node.note;
+        copied.msig = node.msig;
+        for (Node child : node.children) {
+            copied.children.add(BlockLayout.copy(child));
+        }
+        return copied;
+    }
+}
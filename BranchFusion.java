@@ -0,0 +1,87 @@
+import java.util.HashSet;
+
+/**
+ * Fuses relational tests into the branches on them
+ *
+ * IR3Gen puts every condition into a temporary, which CodeGen computes
+ * with a compare and two conditional moves, only to compare it with 1
+ * before branching. When the temporary is computed right before the
+ * branch and isn't read after it, the branch takes the comparison
+ * itself (with the operator flipped for a branch on !), and CodeGen
+ * branches on its condition code.
+ */
+class BranchFusion {
+    public static void run(CMtd3 mtd) {
+        HashSet<Stmt3> fused = new HashSet<>();
+
+        for (BasicBlock blk : BasicBlock.fromCMtd3(mtd)) {
+            int size = blk.stmts.size();
+            if (size < 2) {
+                continue;
+            }
+
+            Stmt3 test = blk.stmts.get(size - 2);
+            Stmt3 branch = blk.stmts.get(size - 1);
+            if (test.type != Stmt3.StmtType.LAssign || branch.type != Stmt3.StmtType.IfGoto) {
+                continue;
+            }
+
+            Node cond = branch.children.get(0);
+            boolean negated = (cond.type == Node.NodeType.BNeg);
+            Node var = negated ? cond.children.get(0) : cond;
+            Node exp = test.children.get(1);
+
+            if ((var.type != Node.NodeType.Identifier && var.type != Node.NodeType.Id3)
+                || !var.getLabelledValue().equals(test.children.get(0).getLabelledValue())
+                || !BranchFusion.isRelational(exp)
+                || blk.liveOut.get(mtd.getVarIndex(var.getLabelledValue()))) {
+                continue;
+            }
+
+            branch.children.set(0, negated ? BranchFusion.negate(exp) : exp);
+            fused.add(test);
+        }
+
+        if (!fused.isEmpty()) {
+            mtd.stmts.removeIf(fused::contains);
+            DeadCodeElimination.removeUnusedVariables(mtd);
+        }
+    }
+
+    private static boolean isRelational(Node exp) {
+        return exp.type == Node.NodeType.Exp
+            && BranchFusion.getInverse(exp.children.get(1).getLabelledValue()) != null;
+    }
+
+    private static Node negate(Node exp) {
+        Node op = exp.children.get(1);
+        Node inverse = new Node(op.type, BranchFusion.getInverse(op.getLabelledValue()));
+        inverse.note = op.note;
+
+        Node negated = new Node(Node.NodeType.Exp, exp.children.get(0), inverse, exp.children.get(2));
+        negated.note = exp.note;
+        return negated;
+    }
+
+    /**
+     * The relational operator that holds exactly when op doesn't, or null
+     */
+    private static String getInverse(String op) {
+        switch (op) {
+            case "<":
+                return ">=";
+            case ">=":
+                return "<";
+            case ">":
+                return "<=";
+            case "<=":
+                return ">";
+            case "==":
+                return "!=";
+            case "!=":
+                return "==";
+            default:
+                return null;
+        }
+    }
+}
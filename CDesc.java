@@ -10,56 +10,84 @@ import java.util.List;
  * for a specific class
  */
 class CDesc {
-    public HashMap<String, String> fds = new HashMap<String, String>();
-    public HashMap<String, HashMap<String, String>> msigs = new HashMap<String, HashMap<String, String>>();
+    public HashMap<String, Type> fds = new HashMap<String, Type>();
+    public HashMap<String, HashMap<Signature, MDesc>> msigs = new HashMap<String, HashMap<Signature, MDesc>>();
 
     // Performs distinct-name checking too!
     // Parts (a), (c), (d)
-    public void fromBlock(Node bnode, Location left, Location right, String cname) {
+    public void fromBlock(Compilation ctx, Node bnode, Location left, Location right, String cname) {
         List<Node> parts = bnode.children;
         for (Node part : parts) {
             if (part.type == Node.NodeType.VDecl) {
                 String vname = part.children.get(1).getLabelledValue();
-                String vtype = part.children.get(0).data;
+                Type vtype = ctx.state.getType(part.children.get(0).data);
                 if (fds.containsKey(vname)) {
-                    Parser.addError("Class field %s is declared twice!", left, right, vname);
+                    ctx.addError("Class field %s is declared twice!", left, right, vname);
                 }
 
                 fds.putIfAbsent(vname, vtype);
             } else {
                 // method block
-                String rtype = part.children.get(0).data;
+                Type rtype = ctx.state.getType(part.children.get(0).data);
                 String mname = part.children.get(1).getLabelledValue();
                 HashSet<String> inames = new HashSet<String>();
-                ArrayList<String> itypes = new ArrayList<String>(part.children.size());
+                ArrayList<Type> itypes = new ArrayList<Type>(part.children.size());
 
                 for (Node mpart : part.children.get(2).children) {
                     String iname = mpart.children.get(1).getLabelledValue();
                     if (!inames.add(iname)) {
-                        Parser.addError("Parameter %s is defined more than once in method signature %s", left,
+                        ctx.addError("Parameter %s is defined more than once in method signature %s", left,
                                 right, iname, mname);
                     }
-                    itypes.add(mpart.children.get(0).data);
+                    itypes.add(ctx.state.getType(mpart.children.get(0).data));
                 }
 
-                String isig = String.join(",", itypes);
-                this.addMsig(cname, mname, isig, rtype);
+                Signature isig = ctx.state.getSignature(itypes);
+                part.msig = this.addMsig(ctx, cname, mname, isig, rtype).mangledName;
             }
         }
     }
 
-    public void addMsig(String cname, String mname, String minput, String mreturn) {
-        HashMap<String, String> msig = this.msigs.getOrDefault(mname, new HashMap<String, String>());
+    /**
+     * Adds a method to the class and returns its entry.
+     * A method declared twice keeps the first entry in the
+     * descriptor, but still gets its own entry back.
+     */
+    public MDesc addMsig(Compilation ctx, String cname, String mname, Signature minput, Type mreturn) {
+        HashMap<Signature, MDesc> msig = this.msigs.getOrDefault(mname, new HashMap<Signature, MDesc>());
+        MDesc mdesc = new MDesc(cname, mname, minput, mreturn);
 
         if (msig.containsKey(minput)) {
-            System.out.format("Method %s with type signature %s is declared twice!\n", mname, minput);
+            ctx.out.format("Method %s with type signature %s is declared twice!\n", mname, minput);
         }
 
-        msig.putIfAbsent(minput, mreturn);
+        msig.putIfAbsent(minput, mdesc);
         this.msigs.putIfAbsent(mname, msig);
+        return mdesc;
     }
 
     public String toString() {
         return fds.toString() + msigs.toString();
     }
 }
+
+/**
+ * A method of a class as resolved by the typechecker
+ */
+class MDesc {
+    public Type rtype;
+    public Signature sig;
+
+    // Name of the method in IR3 and assembly
+    public String mangledName;
+
+    public MDesc(String cname, String mname, Signature sig, Type rtype) {
+        this.rtype = rtype;
+        this.sig = sig;
+        this.mangledName = String.format("_%s_%s_%s_%s", cname, mname, rtype, sig.getMangledName());
+    }
+
+    public String toString() {
+        return String.format("%s(%s)", rtype, sig);
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader over a CharBuffer, used to feed a memory-mapped source
+ * file to the lexer without going through FileReader + BufferedReader.
+ */
+class CharBufferReader extends Reader {
+    private CharBuffer buffer;
+
+    public CharBufferReader(CharBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps a source file into memory and decodes it in one go
+     */
+    public static CharBufferReader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CharBufferReader(StandardCharsets.UTF_8.decode(bytes));
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(cbuf, off, n);
+        return n;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() : -1;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Copy propagation and temporary coalescing on the IR3 of a method
+ *
+ * IR3Gen gives every sub-expression its own temporary, so a method
+ * ends up with dozens of them, and each one costs a stack slot.
+ * propagateCopies reads through every "x = y" in SSA form, so the copy
+ * is left dead (for DeadCodeElimination to remove). mergeTemporaries then
+ * lets temporaries of the same type that are never live at the same
+ * time share one name, and drops the declarations left unused.
+ */
+class Coalescing {
+    /**
+     * Expects SSA form (see SSA.construct), where every variable is only
+     * written once, so a copy holds wherever its variable is read
+     */
+    public static void propagateCopies(CMtd3 mtd) {
+        // Variable -> the variable it is a copy of
+        HashMap<String, Node> copies = new HashMap<>();
+        for (Stmt3 stmt : mtd.stmts) {
+            if (stmt.type == Stmt3.StmtType.LAssign
+                && Coalescing.isVariable(mtd, stmt.children.get(0))
+                && Coalescing.isVariable(mtd, stmt.children.get(1))) {
+                copies.put(stmt.children.get(0).getLabelledValue(), stmt.children.get(1));
+            }
+        }
+
+        if (copies.isEmpty()) {
+            return;
+        }
+
+        for (Stmt3 stmt : mtd.stmts) {
+            Coalescing.substitute(mtd, stmt, copies);
+        }
+    }
+
+    public static void mergeTemporaries(CMtd3 mtd) {
+        ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+        int numVars = mtd.getNumVars();
+        int numFormals = mtd.fmllist3.size();
+
+        /**
+         * A variable interferes with everything live after it is written
+         * (except the variable it is a copy of, as they hold the same value)
+         */
+        BitSet[] interference = new BitSet[numVars];
+        for (int v = 0; v < numVars; v++) {
+            interference[v] = new BitSet();
+        }
+
+        // Live intervals, numbered like in RegisterAllocator
+        int[] start = new int[numVars];
+        int[] end = new int[numVars];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+
+        int pos = 0;
+        for (BasicBlock blk : blocks) {
+            BitSet[] live = blk.getLiveSets();
+
+            for (int i = 0; i < blk.stmts.size(); i++, pos += 2) {
+                RegisterAllocator.cover(live[i], pos, start, end);
+                RegisterAllocator.cover(live[i + 1], pos + 1, start, end);
+
+                Stmt3 stmt = blk.stmts.get(i);
+                int def = blk.getDef(stmt);
+                if (def < 0) {
+                    continue;
+                }
+
+                BitSet others = (BitSet) live[i + 1].clone();
+                others.clear(def);
+                if (stmt.type == Stmt3.StmtType.LAssign && Coalescing.isVariable(mtd, stmt.children.get(1))) {
+                    others.clear(mtd.getVarIndex(stmt.children.get(1).getLabelledValue()));
+                }
+
+                interference[def].or(others);
+                for (int v = others.nextSetBit(0); v >= 0; v = others.nextSetBit(v + 1)) {
+                    interference[v].set(def);
+                }
+            }
+        }
+
+        ArrayList<Integer> temps = new ArrayList<>();
+        for (int i = 0; i < mtd.vardecl3s.size(); i++) {
+            if (mtd.vardecl3s.get(i).id.startsWith("_t") && end[numFormals + i] >= 0) {
+                temps.add(numFormals + i);
+            }
+        }
+        temps.sort((a, b) -> Integer.compare(start[a], start[b]));
+
+        BitSet starts = new BitSet();
+        for (int v = 0; v < numVars; v++) {
+            if (end[v] >= 0) {
+                starts.set(start[v]);
+            }
+        }
+
+        /**
+         * A temporary only takes over one that died before it, with no
+         * other interval starting in between (as in "_t1 = _t0 + 1"),
+         * so the register allocator never has to keep a register
+         * through the hole of the merged interval
+         */
+        HashMap<String, String> renamed = new HashMap<>();
+        ArrayList<Integer> kept = new ArrayList<>();
+
+        for (int v : temps) {
+            VarDecl3 vdecl = mtd.vardecl3s.get(v - numFormals);
+
+            for (int rep : kept) {
+                VarDecl3 repDecl = mtd.vardecl3s.get(rep - numFormals);
+                if (end[rep] < start[v] && starts.nextSetBit(end[rep] + 1) == start[v]
+                    && repDecl.type.equals(vdecl.type) && !interference[rep].get(v)) {
+                    renamed.put(vdecl.id, repDecl.id);
+                    end[rep] = end[v];
+                    interference[rep].or(interference[v]);
+                    for (int w = interference[v].nextSetBit(0); w >= 0; w = interference[v].nextSetBit(w + 1)) {
+                        interference[w].set(rep);
+                    }
+                    break;
+                }
+            }
+
+            if (!renamed.containsKey(vdecl.id)) {
+                kept.add(v);
+            }
+        }
+
+        if (renamed.isEmpty()) {
+            return;
+        }
+
+        HashSet<Node> seen = new HashSet<>();
+        for (Stmt3 stmt : mtd.stmts) {
+            Coalescing.rename(stmt, renamed, seen);
+        }
+
+        // Copies between merged temporaries are now no-ops
+        mtd.stmts.removeIf(stmt ->
+            stmt.type == Stmt3.StmtType.LAssign
+            && Coalescing.isVariable(mtd, stmt.children.get(1))
+            && stmt.children.get(0).getLabelledValue().equals(stmt.children.get(1).getLabelledValue())
+        );
+        mtd.vardecl3s.removeIf(vdecl -> renamed.containsKey(vdecl.id));
+    }
+
+    /**
+     * Replaces the variables read by a statement with what they are a copy of
+     */
+    private static void substitute(CMtd3 mtd, Stmt3 stmt, HashMap<String, Node> copies) {
+        switch (stmt.type) {
+            case LAssign:
+                stmt.children.set(1, Coalescing.substitute(mtd, stmt.children.get(1), copies));
+                break;
+
+            case FAssign:
+                // Skip the field name
+                stmt.children.set(0, Coalescing.substitute(mtd, stmt.children.get(0), copies));
+                stmt.children.set(2, Coalescing.substitute(mtd, stmt.children.get(2), copies));
+                break;
+
+            case Call:
+                // Skip the method name
+                Coalescing.substitute(mtd, stmt.children.get(1), copies);
+                break;
+
+            case Phi:
+                Coalescing.substitute(mtd, stmt.children.get(1), copies);
+                break;
+
+            case IfGoto:
+            case PrintLn:
+            case ReturnT:
+                stmt.children.set(0, Coalescing.substitute(mtd, stmt.children.get(0), copies));
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private static Node substitute(CMtd3 mtd, Node node, HashMap<String, Node> copies) {
+        switch (node.type) {
+            case Identifier:
+            case Id3:
+                // Copies of copies go back to the first one
+                while (copies.containsKey(node.getLabelledValue())) {
+                    node = copies.get(node.getLabelledValue());
+                }
+                return node;
+
+            case Call:
+                // Skip the method name
+                Coalescing.substitute(mtd, node.children.get(1), copies);
+                return node;
+
+            case Field:
+                // Skip the field name
+                node.children.set(0, Coalescing.substitute(mtd, node.children.get(0), copies));
+                return node;
+
+            default:
+                for (int i = 0; i < node.children.size(); i++) {
+                    node.children.set(i, Coalescing.substitute(mtd, node.children.get(i), copies));
+                }
+                return node;
+        }
+    }
+
+    /**
+     * Renames the temporaries in a statement (nodes can be shared
+     * between statements, so each is only renamed once)
+     */
+    private static void rename(Stmt3 stmt, HashMap<String, String> renamed, HashSet<Node> seen) {
+        switch (stmt.type) {
+            case FAssign:
+                // Skip the field name
+                Coalescing.rename(stmt.children.get(0), renamed, seen);
+                Coalescing.rename(stmt.children.get(2), renamed, seen);
+                break;
+
+            case Call:
+                // Skip the method name
+                Coalescing.rename(stmt.children.get(1), renamed, seen);
+                break;
+
+            case Label:
+            case Goto:
+                break;
+
+            case IfGoto:
+                Coalescing.rename(stmt.children.get(0), renamed, seen);
+                break;
+
+            default:
+                for (Node child : stmt.children) {
+                    Coalescing.rename(child, renamed, seen);
+                }
+                break;
+        }
+    }
+
+    private static void rename(Node node, HashMap<String, String> renamed, HashSet<Node> seen) {
+        switch (node.type) {
+            case Identifier:
+            case Id3: {
+                // The name can be held by a child (see Node.getLabelledValue)
+                Node name = node.children.isEmpty() ? node : node.children.get(0);
+                if (seen.add(name) && renamed.containsKey(name.data)) {
+                    name.data = renamed.get(name.data);
+                }
+                break;
+            }
+
+            case Call:
+                // Skip the method name
+                Coalescing.rename(node.children.get(1), renamed, seen);
+                break;
+
+            case Field:
+                // Skip the field name
+                Coalescing.rename(node.children.get(0), renamed, seen);
+                break;
+
+            default:
+                for (Node child : node.children) {
+                    Coalescing.rename(child, renamed, seen);
+                }
+                break;
+        }
+    }
+
+    private static boolean isVariable(CMtd3 mtd, Node node) {
+        return (node.type == Node.NodeType.Identifier || node.type == Node.NodeType.Id3)
+            && mtd.getVarIndex(node.getLabelledValue()) >= 0;
+    }
+}
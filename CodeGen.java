@@ -1,8 +1,14 @@
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Class that takes in IR3 and generates
@@ -10,39 +16,48 @@ import java.util.Map;
  */
 
 class CodeGen {
-    static class BasicBlockState {
-        String[] registerDescriptor = new String[8];
-        int[] registerLastUse = new int[8];
-        HashMap<String, Integer> addressDescriptor = new HashMap<>();
-
-        public BasicBlockState() {
-            for (int i = 0; i < 8; i++) {
-                this.registerDescriptor[i] = null;
-                this.registerLastUse[i] = -1;
-            }
-        }
-    }
+    // Registers free for CodeGen within a statement
+    private static final int NUM_SCRATCH = 4;
+
+    // Cycles a mul takes on an ARMv5 core, where the other data processing
+    // instructions (with a constant shift) take one
+    private static final int MUL_COST = 3;
 
     static class CodeGenState {
-        StringBuilder textSection = new StringBuilder();
+        ArrayList<ArmInstr> textSection = new ArrayList<>();
         ArrayList<String> dataSection = new ArrayList<String>();
 
         // Per file variables
-        int offset = 0, numLabelled = 0;
-        HashMap<String, CData3> cdataMapping = new HashMap<>();
+        int offset = 0;
+        HashMap<String, CData3> cdataMapping;
+
+        // Calls in tail position jump to the callee (under -O)
+        boolean tailCalls = false;
 
         // Per method variables
-        ArrayList<String> stackLocations = new ArrayList<>();
         CMtd3 currentMethod = null;
+        RegisterAllocator.Allocation allocation = null;
 
-        // Per basic block
-        BasicBlockState bbs;
+        // Callee-saved registers the method writes (as a register list, or empty),
+        // and whether it calls nothing (so lr stays put and there is no frame pointer)
+        String savedRegisters = "";
+        int numSaved = 0;
+        boolean isLeaf = false;
 
-        public CodeGenState(IR3 ir3) {
-            for (CData3 cdata : ir3.cdata3s) {
-                cdataMapping.put(cdata.cname3, cdata);
-            }
-            initializeCodeGen(null);
+        // Whether the method loads anything from the literal pool
+        boolean usesLiteralPool = false;
+
+        // Per statement: variables that may be read after it
+        BitSet liveAfter = null;
+
+        // Next of r0-r3 to hand out within the statement
+        int nextScratch = 0;
+
+        // Bytes sp is moved down by for the arguments of a call being made
+        int argsOnStack = 0;
+
+        public CodeGenState(HashMap<String, CData3> cdataMapping) {
+            this.cdataMapping = cdataMapping;
         }
 
         public String generateDataSection() {
@@ -58,273 +73,509 @@ class CodeGen {
             return sb.toString();
         }
 
-        public void initializeCodeGen(CMtd3 cmtd) {
-            stackLocations.clear();
-            this.initNewBB();
-
-            for (int i = 0; i < 8; i++) {
-                this.bbs.registerDescriptor[i] = null;
-                this.bbs.registerLastUse[i] = -1;
-            }
-
-            if (cmtd != null) {
-                for (int i = 0; i < cmtd.fmllist3.size(); i++) {
-                    String var = cmtd.fmllist3.get(i).id;
-                    if (i < 4) {
-                        this.bbs.registerDescriptor[i] = var;
-                        this.bbs.registerLastUse[i] = 0;
-                        this.bbs.addressDescriptor.put(var, i);
-                    }
-                    stackLocations.add(var);
-                }
-
-                for (VarDecl3 vdecl : cmtd.vardecl3s) {
-                    stackLocations.add(vdecl.id);
-                }
+        public String generateTextSection() {
+            StringBuilder sb = new StringBuilder();
+            for (ArmInstr instr : textSection) {
+                instr.render(sb);
             }
 
-            this.currentMethod = cmtd;
+            return sb.toString();
         }
 
-        public BasicBlockState initNewBB() {
-            this.bbs = new BasicBlockState();
-            return this.bbs;
+        public void emit(ArmInstr instr) {
+            textSection.add(instr);
         }
 
-        public BasicBlockState copyBasicBlockState(BasicBlockState oldBBS) {
-            BasicBlockState newBBS = new BasicBlockState();
+        /**
+         * Appends the code and data of another state after this one,
+         * renumbering its data references.
+         */
+        public void append(CodeGenState other) {
+            int dataOffset = this.dataSection.size();
 
-            newBBS.registerDescriptor = Arrays.copyOf(
-                oldBBS.registerDescriptor,
-                oldBBS.registerDescriptor.length
-            );
+            for (ArmInstr instr : other.textSection) {
+                for (int i = 0; i < instr.operands.length; i++) {
+                    if (instr.operands[i].kind == ArmInstr.Operand.Kind.DATA) {
+                        instr.operands[i] = ArmInstr.Operand.data(instr.operands[i].value + dataOffset);
+                    }
+                }
+            }
 
-            newBBS.registerLastUse = Arrays.copyOf(
-                oldBBS.registerLastUse,
-                oldBBS.registerLastUse.length
-            );
+            this.textSection.addAll(other.textSection);
+            this.dataSection.addAll(other.dataSection);
+        }
 
-            newBBS.addressDescriptor = new HashMap<>(oldBBS.addressDescriptor);
+        public void initializeCodeGen(CMtd3 cmtd, List<BasicBlock> blocks) {
+            this.currentMethod = cmtd;
+            this.allocation = RegisterAllocator.allocate(cmtd, blocks);
 
-            this.bbs = newBBS;
-            return newBBS;
+            ArrayList<String> saved = new ArrayList<>();
+            BitSet used = this.allocation.usedRegisters;
+            for (int reg = used.nextSetBit(0); reg >= 0; reg = used.nextSetBit(reg + 1)) {
+                // r4-r8 are v1-v5
+                saved.add("v" + (reg - 3));
+            }
+            this.savedRegisters = String.join(",", saved);
+            this.numSaved = saved.size();
+            this.isLeaf = CodeGen.isLeaf(cmtd);
+            this.usesLiteralPool = false;
         }
     }
 
-    static String fromIR3(IR3 ir3) {
-        CodeGenState cgs = new CodeGenState(ir3);
+    static String fromIR3(IR3 ir3, boolean optimize) {
+        HashMap<String, CData3> cdataMapping = CodeGen.getCDataMapping(ir3);
+        int[] labelOffsets = CodeGen.getLabelOffsets(ir3);
 
-        for (CMtd3 cm3 : ir3.cmtd3s) {
-            CodeGen.fromCMtd3(cgs, cm3);
+        List<CodeGenState> methods = IntStream.range(0, ir3.cmtd3s.size())
+            .parallel()
+            .mapToObj(i -> CodeGen.fromCMtd3(cdataMapping, labelOffsets[i], ir3.cmtd3s.get(i), optimize))
+            .collect(Collectors.toList());
 
-            // Increment offset
-            cgs.offset += cgs.numLabelled;
-            cgs.numLabelled = 0;
+        // Merge in declaration order
+        CodeGenState program = new CodeGenState(cdataMapping);
+        for (CodeGenState cgs : methods) {
+            program.append(cgs);
         }
 
         return String.format(
             ".data\n\n%s\n\t.text\n\t.global main\n\n%s",
-            cgs.generateDataSection(),
-            cgs.textSection.toString()
+            program.generateDataSection(),
+            program.generateTextSection()
         );
     }
 
-    static void fromCMtd3(CodeGenState cgs, CMtd3 cmtd) {
-        BasicBlock first = BasicBlock.fromCMtd3(cmtd);
+    /**
+     * Streaming version of fromIR3.
+     * Every method is written out as soon as it and the ones before it
+     * are done, so only a few methods are held in memory at a time.
+     * The data section is only complete at the end, so it goes last.
+     */
+    static void fromIR3(IR3 ir3, Writer out, boolean optimize) throws IOException {
+        HashMap<String, CData3> cdataMapping = CodeGen.getCDataMapping(ir3);
+        int[] labelOffsets = CodeGen.getLabelOffsets(ir3);
 
-        cgs.initializeCodeGen(cmtd);
+        // Methods being generated, at most one per worker
+        int window = ForkJoinPool.getCommonPoolParallelism();
+        ArrayDeque<ForkJoinTask<CodeGenState>> pending = new ArrayDeque<>();
 
-        if (first == null) {
-            return;
+        // Only keeps the data section and the method being written
+        CodeGenState program = new CodeGenState(cdataMapping);
+
+        out.write("\t.text\n\t.global main\n\n");
+
+        for (int i = 0; i < ir3.cmtd3s.size(); i++) {
+            CMtd3 cmtd = ir3.cmtd3s.get(i);
+            int offset = labelOffsets[i];
+            pending.add(ForkJoinTask.adapt(() -> CodeGen.fromCMtd3(cdataMapping, offset, cmtd, optimize)).fork());
+
+            if (pending.size() > window) {
+                CodeGen.writeMethod(out, program, pending.pollFirst().join());
+            }
         }
 
-        // Callee Prologue
-        CodeGen.buildPrologue(cgs, cmtd);
+        while (!pending.isEmpty()) {
+            CodeGen.writeMethod(out, program, pending.pollFirst().join());
+        }
 
-        boolean blockFlag = first.recToggle;
-        ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>();
-        blockQueue.add(first);
-        first.bbsOut = cgs.bbs;
+        out.write("\n.data\n\n");
+        out.write(program.generateDataSection());
+    }
 
-        // TODO: Save register states when branching!
-        while (!blockQueue.isEmpty()) {
-            BasicBlock curBlock = blockQueue.pollFirst();
+    private static void writeMethod(Writer out, CodeGenState program, CodeGenState method) throws IOException {
+        program.append(method);
+        out.write(program.generateTextSection());
 
-            if (curBlock.recToggle != blockFlag) {
-                continue;
-            }
+        program.textSection.clear();
+    }
 
-            if (curBlock.previous.size() > 1) {
-                /**
-                 * Registers might not be correct!
-                 * We should init it out
-                 */
-                curBlock.bbsOut = cgs.initNewBB();
-            } else if (curBlock.previous.size() == 1 && !curBlock.isFirst) {
-                // Carry over previous block's state
-                curBlock.bbsOut = cgs.copyBasicBlockState(
-                    curBlock.previous.get(0).bbsOut
-                );
-            }
+    private static HashMap<String, CData3> getCDataMapping(IR3 ir3) {
+        HashMap<String, CData3> cdataMapping = new HashMap<>();
+        for (CData3 cdata : ir3.cdata3s) {
+            cdataMapping.put(cdata.cname3, cdata);
+        }
 
-            curBlock.recToggle = !curBlock.recToggle;
+        return cdataMapping;
+    }
 
-            for (Stmt3 stmt : curBlock.stmts) {
-                CodeGen.fromStmt(cgs, stmt);
-            }
+    /**
+     * Every method gets its own range of labels up front,
+     * so that they can be generated independently
+     */
+    private static int[] getLabelOffsets(IR3 ir3) {
+        int[] labelOffsets = new int[ir3.cmtd3s.size()];
+        for (int i = 1; i < labelOffsets.length; i++) {
+            labelOffsets[i] = labelOffsets[i - 1] + ir3.cmtd3s.get(i - 1).getNumLabels();
+        }
 
-            // Check next block to see if we need to save all registers
-            for (BasicBlock next : curBlock.next) {
-                if (next.previous.size() > 1) {
-                    // Save registers
-                    CodeGen.saveAllRegisters(cgs);
-                    break;
+        return labelOffsets;
+    }
+
+    static CodeGenState fromCMtd3(HashMap<String, CData3> cdataMapping, int labelOffset, CMtd3 cmtd, boolean optimize) {
+        CodeGenState cgs = new CodeGenState(cdataMapping);
+        cgs.offset = labelOffset;
+        cgs.tailCalls = optimize;
+        CodeGen.fromCMtd3(cgs, cmtd);
+
+        // The peephole rules never span methods
+        if (optimize) {
+            cgs.textSection = Peephole.run(cgs.textSection);
+        }
+
+        return cgs;
+    }
+
+    static void fromCMtd3(CodeGenState cgs, CMtd3 cmtd) {
+        ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(cmtd);
+
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        cgs.initializeCodeGen(cmtd, blocks);
+
+        // Callee Prologue
+        CodeGen.buildPrologue(cgs, cmtd);
+        CodeGen.loadFormals(cgs, cmtd, blocks.get(0).liveIn);
+
+        // Blocks are laid out in the order of the statements
+        for (BasicBlock curBlock : blocks) {
+            BitSet[] liveSets = curBlock.getLiveSets();
+
+            for (int i = 0; i < curBlock.stmts.size(); i++) {
+                cgs.liveAfter = liveSets[i + 1];
+                cgs.nextScratch = 0;
+
+                Stmt3 stmt = curBlock.stmts.get(i);
+                Stmt3 next = (i + 1 < curBlock.stmts.size()) ? curBlock.stmts.get(i + 1) : null;
+                if (cgs.tailCalls && CodeGen.isTailCall(cmtd, stmt, next)) {
+                    CodeGen.fromTailCall(cgs, CodeGen.getCall(stmt));
+                    i++;
+                    continue;
                 }
-            }
 
-            blockQueue.addAll(curBlock.next);
+                CodeGen.fromStmt(cgs, stmt);
+            }
         }
 
+        cgs.liveAfter = null;
+
         // Callee Epilogue
         CodeGen.buildEpilogue(cgs, cmtd);
     }
 
+    /**
+     * Saves the callee-saved registers the method writes, and for a
+     * method that calls something, lr and fp too, with fp pointing at
+     * the saved lr (and the arguments passed on the stack above it)
+     */
     private static void buildPrologue(CodeGenState cgs, CMtd3 cmtd) {
-        StringBuilder sb = cgs.textSection;
-        sb.append(String.format("%s:\n", cmtd.id));
-        sb.append("\tstmfd sp!, {fp,lr,v1,v2,v3,v4,v5}\n");
-        sb.append("\tadd fp,sp,#24\n");
-        sb.append(
-            String.format("\tsub sp,fp,#%d\n",
-                24 + ((cmtd.vardecl3s.size() + cmtd.fmllist3.size()) * 4)
-            )
-        );
+        int frameSize = 4 * cmtd.getNumVars();
+
+        cgs.emit(ArmInstr.label(ArmInstr.Operand.label(cmtd.id)));
+
+        if (cgs.isLeaf) {
+            if (cgs.numSaved > 0) {
+                cgs.emit(new ArmInstr(ArmInstr.Op.STMFD, ArmInstr.Operand.SP, ArmInstr.Operand.regList(cgs.savedRegisters)).spaced());
+            }
+            if (frameSize > 0) {
+                CodeGen.adjust(cgs, ArmInstr.Op.SUB, ArmInstr.Operand.SP, ArmInstr.Operand.SP, frameSize);
+            }
+            return;
+        }
+
+        int fpOffset = 4 * (cgs.numSaved + 1);
+        cgs.emit(new ArmInstr(ArmInstr.Op.STMFD, ArmInstr.Operand.SP, CodeGen.getFrameRegisters(cgs, "lr")).spaced());
+        cgs.emit(new ArmInstr(ArmInstr.Op.ADD, ArmInstr.Operand.FP, ArmInstr.Operand.SP, ArmInstr.Operand.imm(fpOffset)));
+        CodeGen.adjust(cgs, ArmInstr.Op.SUB, ArmInstr.Operand.SP, ArmInstr.Operand.FP, fpOffset + frameSize);
     }
 
     private static void buildEpilogue(CodeGenState cgs, CMtd3 cmtd) {
-        StringBuilder sb = cgs.textSection;
-        sb.append(String.format("%s_exit:\n", cmtd.id));
+        cgs.emit(ArmInstr.label(CodeGen.getExitLabel(cmtd)));
         if (cmtd.type.toLowerCase().equals("void")) {
-            sb.append("\tmov r0,#0\n");
-        }
-        sb.append("\tsub sp,fp,#24\n");
-        sb.append("\tldmfd sp!, {fp,pc,v1,v2,v3,v4,v5}\n");
-    }
-
-    private static String getRegister(CodeGenState cgs, Node varNode, int lifetime) {
-        // Check if we loaded it
-        if (varNode != null &&
-            (varNode.type == Node.NodeType.Identifier
-            || varNode.type == Node.NodeType.Id3
-            || varNode.type == Node.NodeType.This)) {
-            String variable = varNode.getLabelledValue();
-            if (cgs.bbs.addressDescriptor.containsKey(variable)) {
-                Integer reg = cgs.bbs.addressDescriptor.get(variable);
-                cgs.bbs.registerLastUse[reg] = 0;
-                return String.format("r%d", reg);
+            cgs.emit(new ArmInstr(ArmInstr.Op.MOV, ArmInstr.Operand.reg(0), ArmInstr.Operand.imm(0)));
+        }
+
+        if (cgs.isLeaf) {
+            int frameSize = 4 * cmtd.getNumVars();
+            if (frameSize > 0) {
+                CodeGen.adjust(cgs, ArmInstr.Op.ADD, ArmInstr.Operand.SP, ArmInstr.Operand.SP, frameSize);
+            }
+            if (cgs.numSaved > 0) {
+                cgs.emit(new ArmInstr(ArmInstr.Op.LDMFD, ArmInstr.Operand.SP, ArmInstr.Operand.regList(cgs.savedRegisters)).spaced());
             }
+            cgs.emit(new ArmInstr(ArmInstr.Op.BX, ArmInstr.Operand.LR));
+        } else {
+            cgs.emit(new ArmInstr(ArmInstr.Op.SUB, ArmInstr.Operand.SP, ArmInstr.Operand.FP, ArmInstr.Operand.imm(4 * (cgs.numSaved + 1))));
+            cgs.emit(new ArmInstr(ArmInstr.Op.LDMFD, ArmInstr.Operand.SP, CodeGen.getFrameRegisters(cgs, "pc")).spaced());
+        }
+
+        // The constants the method loads go right after it, within reach of its ldr's
+        if (cgs.usesLiteralPool) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.LTORG));
         }
+    }
 
-        // Find a free Reigster
-        int oldestIdx = -1, lastUse = -1;
+    /**
+     * dest = base +/- amount, going through ip
+     * when the amount doesn't fit in an immediate
+     */
+    private static void adjust(CodeGenState cgs, ArmInstr.Op op, ArmInstr.Operand dest, ArmInstr.Operand base, int amount) {
+        if (ArmInstr.Operand.isEncodable(amount)) {
+            cgs.emit(new ArmInstr(op, dest, base, ArmInstr.Operand.imm(amount)));
+            return;
+        }
 
-        for (int i = 0; i < 8; i++) {
-            if (cgs.bbs.registerLastUse[i] == -1) {
-                // Found an unwanted register!
-                oldestIdx = i;
-                break;
+        CodeGen.loadConstant(cgs, ArmInstr.Operand.IP, amount);
+        cgs.emit(new ArmInstr(op, dest, base, ArmInstr.Operand.IP));
+    }
+
+    /**
+     * fp, lr (or pc, to return) and the callee-saved registers the method writes
+     */
+    private static ArmInstr.Operand getFrameRegisters(CodeGenState cgs, String link) {
+        String regs = "fp," + link;
+        if (cgs.numSaved > 0) {
+            regs += "," + cgs.savedRegisters;
+        }
+        return ArmInstr.Operand.regList(regs);
+    }
+
+    /**
+     * Whether a method calls nothing (including printf and malloc)
+     */
+    private static boolean isLeaf(CMtd3 cmtd) {
+        for (Stmt3 stmt : cmtd.stmts) {
+            switch (stmt.type) {
+                case Call:
+                case PrintLn:
+                    return false;
+
+                case LAssign:
+                case FAssign: {
+                    Node rhs = stmt.children.get(stmt.children.size() - 1);
+                    if (rhs.type == Node.NodeType.Call || rhs.type == Node.NodeType.New) {
+                        return false;
+                    }
+                    break;
+                }
+
+                default:
+                    break;
             }
+        }
+
+        return true;
+    }
 
-            if (lastUse < cgs.bbs.registerLastUse[i]) {
-                oldestIdx = i;
-                lastUse = cgs.bbs.registerLastUse[i];
+    private static ArmInstr.Operand getExitLabel(CMtd3 cmtd) {
+        return ArmInstr.Operand.label(String.format("%s_exit", cmtd.id));
+    }
+
+    /**
+     * Label of an IR3 label number, made unique within the program
+     */
+    private static ArmInstr.Operand getLabel(CodeGenState cgs, Node label) {
+        return ArmInstr.Operand.label(Integer.parseInt(label.getLabelledValue()) + cgs.offset);
+    }
+
+    /**
+     * Moves the formals that are used from where the caller left them
+     * (r0-r3, then the caller's stack) to where they were allocated
+     */
+    private static void loadFormals(CodeGenState cgs, CMtd3 cmtd, BitSet liveIn) {
+        for (int i = 0; i < cmtd.fmllist3.size(); i++) {
+            int varIdx = cmtd.getVarIndex(cmtd.fmllist3.get(i).id);
+            if (varIdx != i || !liveIn.get(i)) {
+                continue;
             }
 
-            cgs.bbs.registerLastUse[i]++;
+            int reg = cgs.allocation.getRegister(i);
+            if (i < 4) {
+                if (reg >= 0) {
+                    cgs.emit(new ArmInstr(ArmInstr.Op.MOV, ArmInstr.Operand.reg(reg), ArmInstr.Operand.reg(i)));
+                } else {
+                    cgs.emit(new ArmInstr(ArmInstr.Op.STR, ArmInstr.Operand.reg(i), CodeGen.getStackSlot(cgs, i)));
+                }
+            } else {
+                // Right above the saved registers (see buildPrologue)
+                ArmInstr.Operand arg = cgs.isLeaf
+                    ? ArmInstr.Operand.mem(ArmInstr.Operand.SP, 4 * (cmtd.getNumVars() + cgs.numSaved + i - 4))
+                    : ArmInstr.Operand.mem(ArmInstr.Operand.FP, 4 * (i - 3));
+                ArmInstr.Operand dest = (reg >= 0) ? ArmInstr.Operand.reg(reg) : ArmInstr.Operand.reg(0);
+
+                cgs.emit(new ArmInstr(ArmInstr.Op.LDR, dest, arg));
+                if (reg < 0) {
+                    cgs.emit(new ArmInstr(ArmInstr.Op.STR, dest, CodeGen.getStackSlot(cgs, i)));
+                }
+            }
         }
-
-        CodeGen.allocateRegister(cgs, oldestIdx, varNode, lifetime);
-        return String.format("r%d", oldestIdx);
     }
 
-    private static String getRegister(CodeGenState cgs, Node varNode) {
-        return CodeGen.getRegister(cgs, varNode, 2);
+    private static ArmInstr.Operand getStackSlot(CodeGenState cgs, int varIdx) {
+        return ArmInstr.Operand.mem(ArmInstr.Operand.SP, 4 * varIdx + cgs.argsOnStack);
     }
 
-    private static void allocateRegister(CodeGenState cgs, int rIdx, Node varNode) {
-        CodeGen.allocateRegister(cgs, rIdx, varNode, 2);
+    /**
+     * Hands out one of r0-r3 for the rest of the statement
+     */
+    private static ArmInstr.Operand getScratch(CodeGenState cgs) {
+        if (cgs.nextScratch >= NUM_SCRATCH) {
+            throw new IllegalStateException("Out of scratch registers");
+        }
+
+        return ArmInstr.Operand.reg(cgs.nextScratch++);
     }
 
-    private static void saveAllRegisters(CodeGenState cgs) {
-        CodeGen.saveFirstNRegisters(cgs, 8);
+    private static int getVarIndex(CodeGenState cgs, Node varNode) {
+        return cgs.currentMethod.getVarIndex(varNode.getLabelledValue());
     }
 
-    private static void saveCalleeSavedRegisters(CodeGenState cgs) {
-        CodeGen.saveFirstNRegisters(cgs, 4);
+    /**
+     * Returns a register holding a variable,
+     * loading it into a scratch register if it is on the stack
+     */
+    private static ArmInstr.Operand getRegister(CodeGenState cgs, Node varNode) {
+        int varIdx = CodeGen.getVarIndex(cgs, varNode);
+        int reg = cgs.allocation.getRegister(varIdx);
+        if (reg >= 0) {
+            return ArmInstr.Operand.reg(reg);
+        }
+
+        ArmInstr.Operand scratch = CodeGen.getScratch(cgs);
+        cgs.emit(new ArmInstr(ArmInstr.Op.LDR, scratch, CodeGen.getStackSlot(cgs, varIdx)));
+        return scratch;
     }
 
-    private static void saveFirstNRegisters(CodeGenState cgs, int n) {
-        for (int i = 0; i < n; i++) {
-            if (cgs.bbs.registerLastUse[i] > -1 && cgs.bbs.registerDescriptor[i] != null) {
-                int storeLocation = cgs.stackLocations.indexOf(cgs.bbs.registerDescriptor[i]);
-                cgs.textSection.append(String.format("\tstr r%d,[sp,#%d]\n", i, 4 * storeLocation));
+    /**
+     * Copies a variable or a constant into a given register
+     */
+    private static void loadValue(CodeGenState cgs, Node valNode, ArmInstr.Operand dest) {
+        switch (valNode.type) {
+            case Identifier:
+            case Id3:
+            case This:
+                int varIdx = CodeGen.getVarIndex(cgs, valNode);
+                int reg = cgs.allocation.getRegister(varIdx);
+
+                if (reg < 0) {
+                    cgs.emit(new ArmInstr(ArmInstr.Op.LDR, dest, CodeGen.getStackSlot(cgs, varIdx)));
+                } else if (reg != dest.value) {
+                    cgs.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.reg(reg)));
+                }
+                break;
+
+            case Integer:
+                CodeGen.loadConstant(cgs, dest, Integer.parseInt(valNode.getLabelledValue()));
+                break;
 
-                CodeGen.clearRegister(cgs, i);
-            }
+            case BGrd:
+                // Booleans are 1 and 0 like Integers
+                cgs.emit(new ArmInstr(ArmInstr.Op.MOV,
+                    dest,
+                    ArmInstr.Operand.imm(valNode.getLabelledValue().equals("true") ? 1 : 0)
+                ));
+                break;
+
+            case Null:
+                cgs.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(0)));
+                break;
+
+            case Str:
+                CodeGen.loadData(cgs, dest, CodeGen.addDataType(cgs, valNode.getLabelledValue()));
+                break;
+
+            default:
+                break;
         }
     }
 
-    private static void allocateRegister(CodeGenState cgs, int rIdx, Node varNode, int lifetime) {
-        // If -1, it means that the previous value is "unwanted"
-        if (cgs.bbs.registerLastUse[rIdx] > -1 && cgs.bbs.registerDescriptor[rIdx] != null) {
-            int storeLocation = cgs.stackLocations.indexOf(cgs.bbs.registerDescriptor[rIdx]);
-            cgs.bbs.addressDescriptor.remove(cgs.bbs.registerDescriptor[rIdx]);
-            cgs.textSection.append(String.format("\tstr r%d,[sp,#%d]\n", rIdx, 4 * storeLocation, cgs.bbs.registerDescriptor[rIdx]));
+    /**
+     * Puts a constant into a register: mov when it fits in an immediate,
+     * mvn when its complement does, and ldr from the literal pool otherwise
+     */
+    private static void loadConstant(CodeGenState cgs, ArmInstr.Operand dest, int value) {
+        if (ArmInstr.Operand.isEncodable(value)) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(value)));
+        } else if (ArmInstr.Operand.isEncodable(~value)) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.MVN, dest, ArmInstr.Operand.imm(~value)));
+        } else {
+            cgs.usesLiteralPool = true;
+            cgs.emit(new ArmInstr(ArmInstr.Op.LDR, dest, ArmInstr.Operand.literal(value)));
         }
+    }
+
+    /**
+     * Returns the register to write a variable into.
+     * If it is on the stack, storeVariable has to be called afterwards.
+     */
+    private static ArmInstr.Operand getDestRegister(CodeGenState cgs, Node varNode) {
+        int reg = cgs.allocation.getRegister(CodeGen.getVarIndex(cgs, varNode));
+        return (reg >= 0) ? ArmInstr.Operand.reg(reg) : CodeGen.getScratch(cgs);
+    }
 
-        if (varNode == null) {
-            // Temporary register: consume based on "lifetime"
-            cgs.bbs.registerDescriptor[rIdx] = null;
-            cgs.bbs.registerLastUse[rIdx] = -1 * lifetime;
+    /**
+     * Stores a variable written into a scratch register back to the stack,
+     * unless it is never read again
+     */
+    private static void storeVariable(CodeGenState cgs, Node varNode, ArmInstr.Operand src) {
+        int varIdx = CodeGen.getVarIndex(cgs, varNode);
+        if (cgs.allocation.getRegister(varIdx) >= 0 || varIdx < 0 || !cgs.liveAfter.get(varIdx)) {
             return;
         }
 
-        if (varNode.type == Node.NodeType.Id3
-            || varNode.type == Node.NodeType.Identifier
-            || varNode.type == Node.NodeType.This) {
-            String variable = varNode.getLabelledValue();
-            if (!cgs.bbs.addressDescriptor.containsKey(variable)) {
-                int loadLocation = cgs.stackLocations.indexOf(variable);
-                cgs.textSection.append(String.format("\tldr r%d,[sp,#%d]\n", rIdx, 4 * loadLocation));
-            } else {
-                // We have a previous record, use it instead!
-                int oldIdx = cgs.bbs.addressDescriptor.get(variable);
-                CodeGen.clearRegister(cgs, oldIdx);
-                cgs.textSection.append(String.format("\tmov r%d, r%d\n", rIdx, oldIdx));
-            }
+        cgs.emit(new ArmInstr(ArmInstr.Op.STR, src, CodeGen.getStackSlot(cgs, varIdx)));
+    }
 
-            cgs.bbs.registerDescriptor[rIdx] = variable;
-            cgs.bbs.registerLastUse[rIdx] = 0;
-            cgs.bbs.addressDescriptor.put(variable, rIdx);
-        } else if (varNode.type == Node.NodeType.Integer) {
-            cgs.bbs.registerLastUse[rIdx] = -2;
-            cgs.textSection.append(String.format("\tmov r%d, #%s\n", rIdx, varNode.getLabelledValue()));
+    /**
+     * Copies a register unless it is the destination already
+     */
+    private static void move(CodeGenState cgs, ArmInstr.Operand dest, ArmInstr.Operand src) {
+        if (dest.value != src.value) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.MOV, dest, src).spaced());
         }
     }
 
-    private static void clearRegister(CodeGenState cgs, int regIdx) {
-        cgs.bbs.addressDescriptor.remove(cgs.bbs.registerDescriptor[regIdx]);
-        cgs.bbs.registerDescriptor[regIdx] = null;
-        cgs.bbs.registerLastUse[regIdx] = -1;
+    /**
+     * A branch on a variable translates to:
+     * CMP <reg>, #1
+     * BEQ <position>
+     *
+     * and one on a relational Exp (see BranchFusion) to:
+     * CMP <lhs>, <rhs>
+     * B<cond> <position>
+     *
+     * with the inverse condition when negated
+     */
+    private static void fromBranch(CodeGenState cgs, Node cond, boolean negated, Node dest) {
+        ArmInstr.Cond when;
+
+        if (cond.type == Node.NodeType.Exp) {
+            Node lhs = cond.children.get(0);
+            Node rhs = cond.children.get(2);
+            when = CodeGen.getCondition(cond.children.get(1).getLabelledValue());
+
+            // Only the second operand can be an immediate
+            if (CodeGen.getConstant(lhs) != null && CodeGen.getConstant(rhs) == null) {
+                lhs = cond.children.get(2);
+                rhs = cond.children.get(0);
+                when = when.swapped();
+            }
+
+            ArmInstr.Operand lhsReg = CodeGen.fromId3c(cgs, lhs);
+            ArmInstr.Operand rhsOp = CodeGen.fromOperand2(cgs, rhs, true);
+            cgs.emit(CodeGen.newArith(ArmInstr.Op.CMP, lhsReg, rhsOp).spaced());
+        } else {
+            cgs.emit(new ArmInstr(ArmInstr.Op.CMP, CodeGen.getRegister(cgs, cond), ArmInstr.Operand.imm(1)).spaced());
+            when = ArmInstr.Cond.EQ;
+        }
+
+        cgs.emit(new ArmInstr(ArmInstr.Op.B, CodeGen.getLabel(cgs, dest)).when(negated ? when.inverse() : when));
     }
 
     private static void fromStmt(CodeGenState cgs, Stmt3 stmt) {
         switch (stmt.type) {
             case Label:
-                cgs.textSection.append(String.format("\t.%s:\n",
-                    Integer.parseInt(stmt.children.get(0).getLabelledValue()) + cgs.offset
-                ));
-                cgs.numLabelled++;
+                cgs.emit(ArmInstr.label(CodeGen.getLabel(cgs, stmt.children.get(0))));
                 break;
 
             case IfGoto:
@@ -335,30 +586,22 @@ class CodeGen {
                     case BGrd:
                         if (cond.getLabelledValue().equals("true")) {
                             // True
-                            cgs.textSection.append(String.format("\tb .%s\n",
-                                Integer.parseInt(dest.getLabelledValue())
-                                + cgs.offset
-                            ));
+                            cgs.emit(new ArmInstr(ArmInstr.Op.B, CodeGen.getLabel(cgs, dest)));
                         } else {
                             // False -> don't add any instructions!
-                            // TODO: Optimize so that we remove the block
+                            // (under -O, DeadCodeElimination has removed it already)
                         }
                         break;
 
                     case Identifier:
                     case Id3:
-                        /**
-                         * Translates to:
-                         * CMP <reg>, #1
-                         * BEQ <position>
-                         */
-                        cgs.textSection.append(String.format("\tcmp %s, #1\n",
-                            CodeGen.getRegister(cgs, cond)
-                        ));
-                        cgs.textSection.append(String.format("\tbeq .%d\n",
-                            Integer.parseInt(dest.getLabelledValue())
-                            + cgs.offset
-                        ));
+                    case Exp:
+                        CodeGen.fromBranch(cgs, cond, false, dest);
+                        break;
+
+                    case BNeg:
+                        // Inverted by BlockLayout
+                        CodeGen.fromBranch(cgs, cond.children.get(0), true, dest);
                         break;
 
                     default:
@@ -367,70 +610,63 @@ class CodeGen {
                 break;
 
             case Goto:
-                cgs.textSection.append(String.format("\tb .%s\n",
-                    Integer.parseInt(stmt.children.get(0).getLabelledValue()) + cgs.offset
-                ));
+                cgs.emit(new ArmInstr(ArmInstr.Op.B, CodeGen.getLabel(cgs, stmt.children.get(0))));
                 break;
 
-            case LAssign:
+            case LAssign: {
                 /**
                  * a = <Exp> translates to
                  * <do exp stuff>
-                 * mov <reg>, <result>
+                 * <result into a's register>
+                 * (STR <result>, <a's stack slot> if a lives on the stack)
                  */
-                String lastExpr = CodeGen.fromExpr(
+                ExprCode lastExpr = CodeGen.fromExpr(
                     cgs,
                     stmt.children.get(1)
                 );
 
-                cgs.textSection.append(String.format(
-                    lastExpr,
-                    CodeGen.getRegister(cgs, stmt.children.get(0))
-                ));
+                ArmInstr.Operand destReg = CodeGen.getDestRegister(cgs, stmt.children.get(0));
+                lastExpr.emit(cgs, destReg);
+                CodeGen.storeVariable(cgs, stmt.children.get(0), destReg);
                 break;
+            }
 
-            case FAssign:
+            case FAssign: {
                 /**
                  * a.b = <Exp> translates to
-                 * <prepare reference to memory>
                  * <do exp stuff>
+                 * <prepare reference to memory>
                  * STR <reg>, <result>
                  */
                 String cname = stmt.children.get(0).note;
                 String fname = stmt.children.get(1).getLabelledValue();
 
-                String rhsExpr = CodeGen.fromExpr(
+                ExprCode rhsExpr = CodeGen.fromExpr(
                     cgs,
                     stmt.children.get(2)
                 );
 
-                String refReg = CodeGen.getRegister(cgs, stmt.children.get(0));
-                String resReg = CodeGen.getRegister(cgs, null);
+                ArmInstr.Operand resReg = CodeGen.getScratch(cgs);
+                rhsExpr.emit(cgs, resReg);
 
-                cgs.textSection.append(String.format(rhsExpr, resReg));
+                // After the expression, which may call something
+                ArmInstr.Operand refReg = CodeGen.getRegister(cgs, stmt.children.get(0));
 
-                cgs.textSection.append(
-                    String.format("\tstr %s,[%s,#%d]\n",
-                        resReg,
-                        refReg,
-                        4 * cgs.cdataMapping.get(cname).getFieldPosition(fname)
-                    )
-                );
+                cgs.emit(new ArmInstr(ArmInstr.Op.STR,
+                    resReg,
+                    ArmInstr.Operand.mem(refReg, 4 * cgs.cdataMapping.get(cname).getFieldPosition(fname))
+                ));
                 break;
+            }
 
             case ReturnT:
-                cgs.textSection.append(String.format("\tmov a1,%s\n",
-                    CodeGen.getRegister(cgs, stmt.children.get(0))
-                ));
+                CodeGen.loadValue(cgs, stmt.children.get(0), ArmInstr.Operand.A1);
             case ReturnV:
-                cgs.textSection.append(String.format("\tb %s\n",
-                    String.format("%s_exit", cgs.currentMethod.id)
-                ));
+                cgs.emit(new ArmInstr(ArmInstr.Op.B, CodeGen.getExitLabel(cgs.currentMethod)));
                 break;
 
             case Call:
                 CodeGen.fromCall(cgs, stmt.children);
-                CodeGen.clearRegister(cgs, 0);
                 break;
 
             case PrintLn:
@@ -440,31 +676,24 @@ class CodeGen {
                     case Id3:
                     case Identifier:
                         String type = printNode.note;
-                        CodeGen.allocateRegister(cgs, 0, null);
-                        cgs.textSection.append(
-                            String.format("\tldr a1, =L%d\n", CodeGen.getFormatString(cgs, type, false))
-                        );
-                        CodeGen.allocateRegister(cgs, 1, printNode);
+                        CodeGen.loadData(cgs, ArmInstr.Operand.A1, CodeGen.getFormatString(cgs, type, false));
+                        CodeGen.loadValue(cgs, printNode, ArmInstr.Operand.A2);
+                        break;
+                    case Integer:
+                        CodeGen.loadData(cgs, ArmInstr.Operand.A1, CodeGen.getFormatString(cgs, "Int", false));
+                        CodeGen.loadValue(cgs, printNode, ArmInstr.Operand.A2);
                         break;
                     case Str:
-                        cgs.textSection.append(
-                            String.format("\tldr a1, =L%d\n", CodeGen.getFormatString(cgs, "String", false))
-                        );
+                        CodeGen.loadData(cgs, ArmInstr.Operand.A1, CodeGen.getFormatString(cgs, "String", false));
                         int dataIdx = CodeGen.addDataType(cgs, stmt.children.get(0).getLabelledValue());
-                        CodeGen.allocateRegister(cgs, 1, printNode);
-                        cgs.textSection.append(
-                            String.format("\tldr a2, =L%d\n", dataIdx)
-                        );
+                        CodeGen.loadData(cgs, ArmInstr.Operand.A2, dataIdx);
                         break;
                     case BGrd:
-                        cgs.textSection.append(
-                            String.format("\tldr a1, =L%d\n", CodeGen.getFormatString(cgs, "BGrd", printNode.getLabelledValue().equals("true")))
-                        );
+                        CodeGen.loadData(cgs, ArmInstr.Operand.A1, CodeGen.getFormatString(cgs, "BGrd", printNode.getLabelledValue().equals("true")));
                         break;
                 }
 
-                CodeGen.saveCalleeSavedRegisters(cgs);
-                cgs.textSection.append("\tbl printf(PLT)\n");
+                cgs.emit(new ArmInstr(ArmInstr.Op.BL, ArmInstr.Operand.label("printf")));
                 break;
 
             case ReadLn:
@@ -476,219 +705,479 @@ class CodeGen {
         }
     }
 
-    private static String fromExpr(CodeGenState cgs, Node exp) {
-        /**
-         * TODO: Write something here
-         */
+    /**
+     * Instructions that compute an expression into a destination register.
+     * fromExpr emits whatever has to come before the destination register
+     * is picked, and returns the rest as one of these.
+     */
+    private interface ExprCode {
+        void emit(CodeGenState cgs, ArmInstr.Operand dest);
+    }
+
+    private static ExprCode fromExpr(CodeGenState cgs, Node exp) {
         switch (exp.type) {
             case Identifier:
             case Id3:
-                return String.format("\tmov %%1$s,%s\n",
-                    CodeGen.getRegister(cgs, exp)
-                );
-
+            case This:
+            case Integer:
             case BGrd:
-                return String.format("\tmov %%1$s,#%d\n",
-                    (exp.getLabelledValue().equals("true")) ? 1 : 0
-                );
+            case Null:
+            case Str:
+                return (c, dest) -> CodeGen.loadValue(c, exp, dest);
 
-            case BNeg:
+            case BNeg: {
                 /**
                  * Performs a check and sets the value as required
                  */
-                return String.format(
-                    "\tcmp %s,#0\n\tmoveq %%1$s,#1\n\tmovne %%1$s,#0\n",
-                    CodeGen.getRegister(cgs, exp.children.get(0))
-                );
+                ArmInstr.Operand src = CodeGen.fromId3c(cgs, exp.children.get(0));
+                return (c, dest) -> {
+                    c.emit(new ArmInstr(ArmInstr.Op.CMP, src, ArmInstr.Operand.imm(0)));
+                    c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(1)).when(ArmInstr.Cond.EQ));
+                    c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(0)).when(ArmInstr.Cond.NE));
+                };
+            }
 
-            case INeg:
-                String tempReg = CodeGen.getRegister(cgs, null);
-                return String.format(
-                    "\tmov %s, #-1\n\tmul %%1$s, %s, %s\n",
-                    tempReg,
-                    CodeGen.getRegister(cgs, exp.children.get(0)),
-                    tempReg
-                );
+            case INeg: {
+                Integer value = CodeGen.getConstant(exp.children.get(0));
+                if (value != null) {
+                    return (c, dest) -> CodeGen.loadConstant(c, dest, -value);
+                }
+
+                // 0 - src
+                ArmInstr.Operand src = CodeGen.fromId3c(cgs, exp.children.get(0));
+                return (c, dest) -> c.emit(new ArmInstr(ArmInstr.Op.RSB, dest, src, ArmInstr.Operand.imm(0)).spaced());
+            }
 
-            case Exp:
+            case Exp: {
                 /**
                  * BOp3 type: <idc3> <op> <idc3>
                  * Translates to
-                 * <Load first id> -> first temp [lifetime = 2]
-                 * <Load second id> -> second temp [lifetime = 1]
+                 * <Get first id into a register>
+                 * <Get second id into a register>
                  * <Do oper on first and second>
                  */
-                String lhsReg = CodeGen.fromId3c(cgs, exp.children.get(0), 3);
-                String rhsReg = CodeGen.fromId3c(cgs, exp.children.get(2), 2);
+                String op = exp.children.get(1).getLabelledValue();
+                Node lhs = exp.children.get(0);
+                Node rhs = exp.children.get(2);
+
+                if (op.equals("*")) {
+                    // By a constant, with shifts and adds if that is cheaper
+                    Integer factor = (CodeGen.getConstant(rhs) != null) ? CodeGen.getConstant(rhs) : CodeGen.getConstant(lhs);
+                    Node other = (CodeGen.getConstant(rhs) != null) ? lhs : rhs;
+                    if (factor != null && CodeGen.getConstant(other) == null && CodeGen.isMulReducible(factor)) {
+                        ArmInstr.Operand src = CodeGen.fromId3c(cgs, other);
+                        return (c, dest) -> {
+                            for (ArmInstr instr : CodeGen.getMulSteps(dest, src, factor)) {
+                                c.emit(instr.spaced());
+                            }
+                        };
+                    }
+
+                    return CodeGen.fromMulExpr(CodeGen.fromId3c(cgs, lhs), CodeGen.fromId3c(cgs, rhs));
+                }
 
-                String operInstr = "";
+                // Only the second operand can be an immediate, so a constant
+                // on the left is swapped over (and subtracted from with rsb)
+                boolean swapped = CodeGen.getConstant(lhs) != null && CodeGen.getConstant(rhs) == null;
+                if (swapped) {
+                    lhs = exp.children.get(2);
+                    rhs = exp.children.get(0);
+                }
+
+                ArmInstr.Operand lhsReg = CodeGen.fromId3c(cgs, lhs);
+                ArmInstr.Operand rhsOp = CodeGen.fromOperand2(cgs, rhs, !(swapped && op.equals("-")));
 
                 // Select appropriate operation
-                switch (exp.children.get(1).getLabelledValue()) {
+                switch (op) {
                     case "<":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmovlt %%1$s, #1\n\tmovge %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
                     case ">":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmovgt %%1$s, #1\n\tmovle %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
                     case "<=":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmovle %%1$s, #1\n\tmovgt %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
                     case ">=":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmovge %%1$s, #1\n\tmovlt %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
                     case "==":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmoveq %%1$s, #1\n\tmovne %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
-                    case "!=":
-                        operInstr = String.format(
-                            "\tcmp %s, %s\n\tmovne %%1$s, #1\n\tmoveq %%1$s, #0\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
+                    case "!=": {
+                        ArmInstr.Cond isTrue = CodeGen.getCondition(op);
+                        return CodeGen.fromRelExpr(lhsReg, rhsOp, swapped ? isTrue.swapped() : isTrue);
+                    }
 
                     case "+":
-                        operInstr = String.format(
-                            "\tadd %%1$s, %s, %s\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
+                        return (c, dest) -> c.emit(CodeGen.newArith(ArmInstr.Op.ADD, dest, lhsReg, rhsOp).spaced());
 
                     case "-":
-                        operInstr = String.format(
-                            "\tsub %%1$s, %s, %s\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
-                    case "*":
-                        operInstr = String.format(
-                            "\tmul %%1$s, %s, %s\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-
-                    case "/":
-                        break;
+                        if (swapped) {
+                            return (c, dest) -> c.emit(new ArmInstr(ArmInstr.Op.RSB, dest, lhsReg, rhsOp).spaced());
+                        }
+                        return (c, dest) -> c.emit(CodeGen.newArith(ArmInstr.Op.SUB, dest, lhsReg, rhsOp).spaced());
 
                     case "&&":
-                        operInstr = String.format(
-                            "\tand %%1$s,%s,%s\n\tcmp %%1$s,#0\n\tmoveq %%1$s,#0\n\tmovne %%1$s,#1\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
+                        return CodeGen.fromBoolExpr(ArmInstr.Op.AND, lhsReg, rhsOp);
 
                     case "||":
-                        operInstr = String.format(
-                            "\tor %%1$s,%s,%s\n\tcmp %%1$s,#0\n\tmoveq %%1$s,#0\n\tmovne %%1$s,#1\n",
-                            lhsReg, rhsReg
-                        );
-                        break;
-                }
-
-                return operInstr;
+                        return CodeGen.fromBoolExpr(ArmInstr.Op.ORR, lhsReg, rhsOp);
 
-            case Integer:
-                return String.format("\tmov %%1$s,#%s\n",
-                    exp.getLabelledValue()
-                );
+                    case "/":
+                    default:
+                        return (c, dest) -> {};
+                }
+            }
 
             case Call:
                 CodeGen.fromCall(cgs, exp.children);
-                return "\tmov %1$s, a1\n";
+                return (c, dest) -> CodeGen.move(c, dest, ArmInstr.Operand.A1);
 
             case New:
-                CodeGen.allocateRegister(cgs, 0, null, 2);
-                cgs.textSection.append(
-                    String.format(
-                        "\tmov a1, #%s\n",
-                        4 * cgs.cdataMapping.get(exp.getLabelledValue()).variables.size()
-                    )
-                );
-                CodeGen.saveCalleeSavedRegisters(cgs);
-                cgs.textSection.append("\tbl malloc(PLT)\n");
-                return "\tmov %1$s, a1\n";
+                CodeGen.loadConstant(cgs, ArmInstr.Operand.A1, 4 * cgs.cdataMapping.get(exp.getLabelledValue()).variables.size());
+                cgs.emit(new ArmInstr(ArmInstr.Op.BL, ArmInstr.Operand.label("malloc")));
+
+                // Keep a1 until it is moved to the destination
+                cgs.nextScratch = 1;
+                return (c, dest) -> CodeGen.move(c, dest, ArmInstr.Operand.A1);
 
-            case Field:
+            case Field: {
                 String cname = exp.children.get(0).note;
                 String fname = exp.children.get(1).getLabelledValue();
 
-                String refReg = CodeGen.getRegister(cgs, exp.children.get(0));
+                ArmInstr.Operand refReg = CodeGen.getRegister(cgs, exp.children.get(0));
+                ArmInstr.Operand field = ArmInstr.Operand.mem(refReg, 4 * cgs.cdataMapping.get(cname).getFieldPosition(fname));
 
-                return String.format("\tldr %%1$s,[%s,#%d]\n",
-                    refReg,
-                    4 * cgs.cdataMapping.get(cname).getFieldPosition(fname)
-                );
+                return (c, dest) -> c.emit(new ArmInstr(ArmInstr.Op.LDR, dest, field));
+            }
+
+            default:
+                return (c, dest) -> {};
+        }
+    }
+
+    /**
+     * Compares and sets the destination to 1 or 0
+     */
+    private static ExprCode fromRelExpr(ArmInstr.Operand lhsReg, ArmInstr.Operand rhsOp, ArmInstr.Cond isTrue) {
+        return (c, dest) -> {
+            c.emit(CodeGen.newArith(ArmInstr.Op.CMP, lhsReg, rhsOp).spaced());
+            c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(1)).when(isTrue).spaced());
+            c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(0)).when(isTrue.inverse()).spaced());
+        };
+    }
+
+    /**
+     * Condition code under which a relational operator holds (after CMP lhs, rhs)
+     */
+    private static ArmInstr.Cond getCondition(String op) {
+        switch (op) {
+            case "<":
+                return ArmInstr.Cond.LT;
+            case ">":
+                return ArmInstr.Cond.GT;
+            case "<=":
+                return ArmInstr.Cond.LE;
+            case ">=":
+                return ArmInstr.Cond.GE;
+            case "==":
+                return ArmInstr.Cond.EQ;
+            case "!=":
+                return ArmInstr.Cond.NE;
+            default:
+                throw new IllegalStateException("Not a relational operator: " + op);
+        }
+    }
+
+    /**
+     * Does a bitwise operation and normalizes the result to 1 or 0
+     */
+    private static ExprCode fromBoolExpr(ArmInstr.Op op, ArmInstr.Operand lhsReg, ArmInstr.Operand rhsOp) {
+        return (c, dest) -> {
+            c.emit(new ArmInstr(op, dest, lhsReg, rhsOp));
+            c.emit(new ArmInstr(ArmInstr.Op.CMP, dest, ArmInstr.Operand.imm(0)));
+            c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(0)).when(ArmInstr.Cond.EQ));
+            c.emit(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(1)).when(ArmInstr.Cond.NE));
+        };
+    }
+
+    /**
+     * The value of a constant operand (booleans and null being 1 and 0 like
+     * Integers), or null if it is a variable
+     */
+    private static Integer getConstant(Node exp) {
+        switch (exp.type) {
+            case Integer:
+                return Integer.parseInt(exp.getLabelledValue());
+
+            case BGrd:
+                return exp.getLabelledValue().equals("true") ? 1 : 0;
+
+            case Null:
+                return 0;
 
             default:
-                return "";
+                return null;
         }
     }
 
+    /**
+     * The last operand of a data processing instruction: an immediate if
+     * the constant fits in one (or, with negatable, if its negation does,
+     * see newArith), a register otherwise
+     */
+    private static ArmInstr.Operand fromOperand2(CodeGenState cgs, Node exp, boolean negatable) {
+        Integer value = CodeGen.getConstant(exp);
+        if (value != null && (ArmInstr.Operand.isEncodable(value) || (negatable && ArmInstr.Operand.isEncodable(-value)))) {
+            return ArmInstr.Operand.imm(value);
+        }
+
+        return CodeGen.fromId3c(cgs, exp);
+    }
+
+    /**
+     * An add, sub or cmp whose immediate only fits negated
+     * becomes a sub, add or cmn of the negated immediate
+     */
+    private static ArmInstr newArith(ArmInstr.Op op, ArmInstr.Operand... operands) {
+        ArmInstr.Operand last = operands[operands.length - 1];
+        if (last.kind != ArmInstr.Operand.Kind.IMM || ArmInstr.Operand.isEncodable(last.value)) {
+            return new ArmInstr(op, operands);
+        }
+
+        operands[operands.length - 1] = ArmInstr.Operand.imm(-last.value);
+        switch (op) {
+            case ADD:
+                return new ArmInstr(ArmInstr.Op.SUB, operands);
+            case SUB:
+                return new ArmInstr(ArmInstr.Op.ADD, operands);
+            case CMP:
+                return new ArmInstr(ArmInstr.Op.CMN, operands);
+            default:
+                throw new IllegalStateException("No negated form of " + op);
+        }
+    }
+
+    /**
+     * Whether multiplying by a constant is cheaper with the steps of
+     * getMulSteps than with a mul (and getting the constant into a register),
+     * counting the move out of ip when the destination is the source
+     */
+    private static boolean isMulReducible(int factor) {
+        int mulCost = MUL_COST;
+        mulCost += (ArmInstr.Operand.isEncodable(factor) || ArmInstr.Operand.isEncodable(~factor)) ? 1 : 2;
+
+        // The same register for both, which takes the most steps
+        ArmInstr.Operand reg = ArmInstr.Operand.A1;
+        return CodeGen.getMulSteps(reg, reg, factor).size() < mulCost;
+    }
+
+    /**
+     * src * factor as adds and subtracts of src shifted left, one per
+     * nonzero digit of the factor (without its trailing zeros) after the
+     * first, then a shift and a negation if they are needed. The digits
+     * are binary or canonical signed digits (+1 or -1, never two next to
+     * each other), whichever takes fewer steps. For instance, 10 is 5 << 1
+     * and 5 is 4 + 1, so
+     * add dest, src, src, lsl #2
+     * mov dest, dest, lsl #1
+     */
+    private static ArrayList<ArmInstr> getMulSteps(ArmInstr.Operand dest, ArmInstr.Operand src, int factor) {
+        if (factor == 0) {
+            ArrayList<ArmInstr> steps = new ArrayList<>();
+            steps.add(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.imm(0)));
+            return steps;
+        }
+
+        long magnitude = Math.abs((long) factor);
+        int shift = Long.numberOfTrailingZeros(magnitude);
+
+        // Positions of the digits of the odd part (-1 - position for a -1), lowest first
+        ArrayList<Integer> binary = new ArrayList<>();
+        ArrayList<Integer> signed = new ArrayList<>();
+        long odd = magnitude >> shift;
+        for (int pos = 0; (odd >> pos) != 0; pos++) {
+            if (((odd >> pos) & 1) != 0) {
+                binary.add(pos);
+            }
+        }
+        for (int pos = 0; odd != 0; pos++, odd >>= 1) {
+            if ((odd & 1) != 0) {
+                long digit = 2 - (odd & 3);
+                signed.add((digit > 0) ? pos : -1 - pos);
+                odd -= digit;
+            }
+        }
+
+        ArrayList<ArmInstr> fromBinary = CodeGen.getMulSteps(dest, src, factor < 0, binary, shift);
+        ArrayList<ArmInstr> fromSigned = CodeGen.getMulSteps(dest, src, factor < 0, signed, shift);
+        return (fromSigned.size() < fromBinary.size()) ? fromSigned : fromBinary;
+    }
+
+    private static ArrayList<ArmInstr> getMulSteps(
+        ArmInstr.Operand dest, ArmInstr.Operand src, boolean negative, ArrayList<Integer> digits, int shift
+    ) {
+        ArrayList<ArmInstr> steps = new ArrayList<>();
+
+        // Every add/sub reads src, so when dest is src (x = x * k) and there
+        // is more than one, they work in ip and the last step moves to dest
+        ArmInstr.Operand work = (dest.value == src.value && digits.size() > 2) ? ArmInstr.Operand.IP : dest;
+
+        // What work holds so far is the negation of the product when negated is set
+        ArmInstr.Operand cur = src;
+        boolean negated = digits.get(0) < 0;
+
+        for (int i = 1; i < digits.size(); i++) {
+            int pos = digits.get(i);
+            ArmInstr.Operand term = ArmInstr.Operand.shifted(src, (pos < 0) ? -1 - pos : pos);
+
+            if (i == 1) {
+                // The first two digits give src +/- term, src - term or term - src in
+                // one step, so start off negated or not as the product is, if it can
+                boolean srcNegative = (digits.get(0) < 0) != negative;
+                boolean termNegative = (pos < 0) != negative;
+                negated = negative;
+                if (srcNegative && termNegative) {
+                    srcNegative = termNegative = false;
+                    negated = !negative;
+                }
+
+                if (srcNegative) {
+                    steps.add(new ArmInstr(ArmInstr.Op.RSB, work, src, term));
+                } else {
+                    steps.add(new ArmInstr(termNegative ? ArmInstr.Op.SUB : ArmInstr.Op.ADD, work, src, term));
+                }
+            } else {
+                boolean subtract = (pos < 0) != negated;
+                steps.add(new ArmInstr(subtract ? ArmInstr.Op.SUB : ArmInstr.Op.ADD, work, cur, term));
+            }
+            cur = work;
+        }
+
+        if (shift > 0) {
+            steps.add(new ArmInstr(ArmInstr.Op.MOV, dest, ArmInstr.Operand.shifted(cur, shift)));
+            cur = dest;
+        }
+
+        if (negated != negative) {
+            steps.add(new ArmInstr(ArmInstr.Op.RSB, dest, cur, ArmInstr.Operand.imm(0)));
+        } else if (cur.value != dest.value) {
+            steps.add(new ArmInstr(ArmInstr.Op.MOV, dest, cur));
+        }
+
+        return steps;
+    }
+
+    /**
+     * mul's destination can't be its first operand,
+     * so this goes through a scratch register if it has to
+     */
+    private static ExprCode fromMulExpr(ArmInstr.Operand lhsReg, ArmInstr.Operand rhsReg) {
+        return (c, dest) -> {
+            if (dest.value != lhsReg.value) {
+                c.emit(new ArmInstr(ArmInstr.Op.MUL, dest, lhsReg, rhsReg).spaced());
+            } else if (dest.value != rhsReg.value) {
+                c.emit(new ArmInstr(ArmInstr.Op.MUL, dest, rhsReg, lhsReg).spaced());
+            } else {
+                ArmInstr.Operand tempReg = CodeGen.getScratch(c);
+                c.emit(new ArmInstr(ArmInstr.Op.MUL, tempReg, lhsReg, rhsReg).spaced());
+                CodeGen.move(c, dest, tempReg);
+            }
+        };
+    }
+
     /**
      * Converts an id3c node to assembly
      * Difference between this and fromExpr is that
-     * this returns the temporary variable.
+     * this returns the register holding the value.
      */
-    private static String fromId3c(CodeGenState cgs, Node exp, int lifetime) {
+    private static ArmInstr.Operand fromId3c(CodeGenState cgs, Node exp) {
         switch (exp.type) {
             case Identifier:
             case Id3:
+            case This:
                 return CodeGen.getRegister(cgs, exp);
 
-            case Integer:
-                String outputRegister = CodeGen.getRegister(cgs, null, lifetime);
-                cgs.textSection.append(String.format("\tmov %s,#%s\n",
-                    outputRegister,
-                    exp.getLabelledValue()
-                ));
-                return outputRegister;
-
             default:
-                return "";
+                ArmInstr.Operand outputRegister = CodeGen.getScratch(cgs);
+                CodeGen.loadValue(cgs, exp, outputRegister);
+                return outputRegister;
         }
     }
 
     private static void fromCall(CodeGenState cgs, ArrayList<Node> children) {
         ArrayList<Node> fmlNodes = children.get(1).children;
+        int numOnStack = Math.max(0, fmlNodes.size() - 4);
 
-        for (int i = fmlNodes.size() - 1; i >= 0; i--) {
-            if (i < 4) {
-                // Store in register
-                CodeGen.allocateRegister(cgs, i, fmlNodes.get(i));
-            } else {
-                // push on stack
-                cgs.textSection.append(String.format("\tldr %s,[sp,#-4]\n",
-                    CodeGen.getRegister(cgs, fmlNodes.get(i))
-                ));
-            }
+        // Arguments after the fourth go on the stack, first one on top,
+        // in space reserved first (variables on the stack are then further from sp)
+        if (numOnStack > 0) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.SUB, ArmInstr.Operand.SP, ArmInstr.Operand.SP, ArmInstr.Operand.imm(4 * numOnStack)));
+            cgs.argsOnStack = 4 * numOnStack;
+        }
+
+        for (int i = 4; i < fmlNodes.size(); i++) {
+            cgs.nextScratch = 0;
+            cgs.emit(new ArmInstr(ArmInstr.Op.STR,
+                CodeGen.fromId3c(cgs, fmlNodes.get(i)),
+                ArmInstr.Operand.mem(ArmInstr.Operand.SP, 4 * (i - 4))
+            ));
+        }
+
+        // The rest in a1-a4, where no variable lives
+        for (int i = 0; i < fmlNodes.size() && i < 4; i++) {
+            CodeGen.loadValue(cgs, fmlNodes.get(i), ArmInstr.Operand.reg(i));
         }
 
-        CodeGen.saveCalleeSavedRegisters(cgs);
-        cgs.textSection.append(String.format("\tbl %s(PLT)\n", children.get(0).getLabelledValue()));
+        cgs.emit(new ArmInstr(ArmInstr.Op.BL, ArmInstr.Operand.label(children.get(0).getLabelledValue())));
 
-        // Reserve a1, so that it won't get consumed by getRegister
-        cgs.bbs.registerLastUse[0] = 0;
+        if (numOnStack > 0) {
+            cgs.emit(new ArmInstr(ArmInstr.Op.ADD, ArmInstr.Operand.SP, ArmInstr.Operand.SP, ArmInstr.Operand.imm(4 * numOnStack)));
+            cgs.argsOnStack = 0;
+        }
+
+        // Keep a1 until it is moved to the destination
+        cgs.nextScratch = 1;
+    }
+
+    /**
+     * Whether a statement is a call whose result the next statement
+     * returns (or, in a method returning nothing, a call before return;),
+     * with all of its arguments in registers
+     */
+    private static boolean isTailCall(CMtd3 cmtd, Stmt3 stmt, Stmt3 next) {
+        ArrayList<Node> call = CodeGen.getCall(stmt);
+        if (call == null || next == null || call.get(1).children.size() > 4 || cmtd.id.equals("main")) {
+            return false;
+        }
+
+        if (stmt.type == Stmt3.StmtType.Call) {
+            return next.type == Stmt3.StmtType.ReturnV;
+        }
+
+        return next.type == Stmt3.StmtType.ReturnT
+            && next.children.get(0).getLabelledValue().equals(stmt.children.get(0).getLabelledValue());
+    }
+
+    /**
+     * The method name and arguments of a call statement or of a call
+     * assigned to a variable, or null
+     */
+    private static ArrayList<Node> getCall(Stmt3 stmt) {
+        if (stmt.type == Stmt3.StmtType.Call) {
+            return stmt.children;
+        }
+        if (stmt.type == Stmt3.StmtType.LAssign && stmt.children.get(1).type == Node.NodeType.Call) {
+            return stmt.children.get(1).children;
+        }
+        return null;
+    }
+
+    /**
+     * A call in tail position leaves the frame like the epilogue does,
+     * but with lr still pointing into the caller, and branches to the
+     * callee, which returns there directly
+     */
+    private static void fromTailCall(CodeGenState cgs, ArrayList<Node> children) {
+        ArrayList<Node> fmlNodes = children.get(1).children;
+        for (int i = 0; i < fmlNodes.size(); i++) {
+            CodeGen.loadValue(cgs, fmlNodes.get(i), ArmInstr.Operand.reg(i));
+        }
+
+        cgs.emit(new ArmInstr(ArmInstr.Op.SUB, ArmInstr.Operand.SP, ArmInstr.Operand.FP, ArmInstr.Operand.imm(4 * (cgs.numSaved + 1))));
+        cgs.emit(new ArmInstr(ArmInstr.Op.LDMFD, ArmInstr.Operand.SP, CodeGen.getFrameRegisters(cgs, "lr")).spaced());
+        cgs.emit(new ArmInstr(ArmInstr.Op.B, ArmInstr.Operand.label(children.get(0).getLabelledValue())));
     }
 
     private static int getFormatString(CodeGenState cgs, String type, boolean isTrue) {
@@ -712,8 +1201,16 @@ class CodeGen {
         }
     }
 
+    /**
+     * Loads the address of a data section entry into a register
+     */
+    private static void loadData(CodeGenState cgs, ArmInstr.Operand reg, int dataIdx) {
+        cgs.usesLiteralPool = true;
+        cgs.emit(new ArmInstr(ArmInstr.Op.LDR, reg, ArmInstr.Operand.data(dataIdx)).spaced());
+    }
+
     private static int addDataType(CodeGenState cgs, String data) {
         cgs.dataSection.add(data);
         return cgs.dataSection.size() - 1;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+import java_cup.runtime.ComplexSymbolFactory;
+import java_cup.runtime.ComplexSymbolFactory.Location;
+import java_cup.runtime.ScannerBuffer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Holds everything that belongs to compiling one JLite source,
+ * so that several compilations can run in the same JVM.
+ */
+class Compilation {
+    public TypecheckerState state = new TypecheckerState();
+    public ErrorManager typeErrors = new ErrorManager();
+    public boolean optimize;
+    public NameTable names = new NameTable();
+
+    // Anything the compiler prints on its way (errors, warnings)
+    private ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream();
+    public PrintStream out = new PrintStream(messageBuffer, true);
+
+    // Results
+    public String ir3 = "";
+    public String asm = "";
+
+    public Compilation(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    public void addError(String fmt, Location left, Location right, Object... args) {
+        this.typeErrors.addError(
+            state.getCurrentClass(), state.getCurrentMethod(), fmt, left, right, args
+        );
+    }
+
+    /**
+     * Parses a source into its AST.
+     * This also collects the tokens for Class Descriptor
+     * and performs distinct name checking.
+     */
+    public Node parse(Reader source) throws Exception {
+        ComplexSymbolFactory csf = new ComplexSymbolFactory();
+        Lexer lexer = new Lexer(source, csf);
+        lexer.out = this.out;
+        lexer.names = this.names;
+
+        Parser p = new Parser(new ScannerBuffer(lexer), csf, this);
+        return (Node)p.parse().value;
+    }
+
+    /**
+     * Does typechecking for the parsed syntax
+     */
+    public void typecheck(Node program) {
+        new Typechecker(this).run(program);
+    }
+
+    /**
+     * Runs the whole compiler over a source.
+     * Returns false if the source has errors, in which case
+     * they can be found in the messages.
+     */
+    public boolean compile(Reader source) throws Exception {
+        IR3 ir3Tree = this.lower(source);
+
+        if (ir3Tree == null) {
+            return false;
+        }
+
+        this.ir3 = ir3Tree.toString();
+
+        this.asm = CodeGen.fromIR3(ir3Tree, optimize);
+
+        return true;
+    }
+
+    /**
+     * Runs the whole compiler over a source and prints the results
+     * like printResults, except that the assembly is written out
+     * method by method as it is generated (with the data section last)
+     * instead of being kept in asm.
+     */
+    public boolean compile(Reader source, PrintStream out, PrintStream err) throws Exception {
+        IR3 ir3Tree = this.lower(source);
+        out.print(this.getMessages());
+
+        if (ir3Tree == null) {
+            return false;
+        }
+
+        this.ir3 = ir3Tree.toString();
+        err.println(this.ir3);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+        CodeGen.fromIR3(ir3Tree, writer, optimize);
+        writer.write(System.lineSeparator());
+        writer.flush();
+
+        return true;
+    }
+
+    /**
+     * Parses, typechecks and lowers a source into IR3.
+     * Returns null if the source has errors.
+     */
+    private IR3 lower(Reader source) throws Exception {
+        Node programNode = this.parse(source);
+
+        // Check for any errors
+        if (typeErrors.hasErrors()) {
+            typeErrors.printAll(this.out);
+            return null;
+        }
+
+        this.typecheck(programNode);
+
+        // Check for any errors
+        if (typeErrors.hasErrors()) {
+            typeErrors.printAll(this.out);
+            return null;
+        }
+
+        return IR3Gen.fromAST(programNode, optimize);
+    }
+
+    public String getMessages() {
+        return messageBuffer.toString();
+    }
+
+    /**
+     * Prints the results the way the command line compiler does:
+     * messages and assembly to out, IR3 to err
+     */
+    public void printResults(PrintStream out, PrintStream err) {
+        out.print(this.getMessages());
+
+        if (typeErrors.hasErrors()) {
+            return;
+        }
+
+        err.println(this.ir3);
+        out.println(this.asm);
+    }
+}
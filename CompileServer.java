@@ -0,0 +1,154 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warm JVM around and compiles JLite sources on request.
+ *
+ * Listens on a TCP port on localhost, every connection can send any
+ * number of requests, one line each:
+ *   path [-O] <file>          compiles a file the server can read
+ *   source [-O] <length>      followed by <length> chars of JLite source
+ *   quit                      closes the connection
+ *
+ * Every reply is a status line ("ok" or "error") followed by three
+ * sections, each as a "<name> <length>" line and <length> chars:
+ *   messages, ir3, asm
+ * "messages" holds what the compiler would have printed to stdout
+ * before the assembly (type errors, warnings).
+ *
+ * Connections are served concurrently, each request gets its own Compilation.
+ */
+class CompileServer {
+    public static final int DEFAULT_PORT = 4212;
+
+    private ServerSocket serverSocket;
+    private ExecutorService pool;
+
+    public CompileServer(int port, int threads) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.pool = Executors.newFixedThreadPool(threads);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                pool.execute(() -> CompileServer.handle(client));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("compile server: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        pool.shutdown();
+    }
+
+    private static void handle(Socket client) {
+        try (Socket socket = client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+
+                if (parts[0].equals("quit")) {
+                    break;
+                } else if (parts[0].isEmpty()) {
+                    continue;
+                }
+
+                boolean optimize = parts.length == 3 && parts[1].equals("-O");
+                String arg = parts[parts.length - 1];
+                Reader source;
+
+                if (parts[0].equals("path") && parts.length >= 2) {
+                    source = CharBufferReader.open(new File(arg));
+                } else if (parts[0].equals("source") && parts.length >= 2) {
+                    char[] text = new char[Integer.parseInt(arg)];
+                    int read = 0;
+                    while (read < text.length) {
+                        int n = in.read(text, read, text.length - read);
+                        if (n < 0) {
+                            throw new IOException("source ended early");
+                        }
+                        read += n;
+                    }
+                    source = new StringReader(new String(text));
+                } else {
+                    CompileServer.reply(out, false, "Unknown request: " + line + "\n", "", "");
+                    continue;
+                }
+
+                CompileServer.compile(out, source, optimize);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("compile server: " + e.getMessage());
+        }
+    }
+
+    private static void compile(Writer out, Reader source, boolean optimize) throws IOException {
+        Compilation compilation = new Compilation(optimize);
+        boolean success;
+        String messages;
+
+        try {
+            success = compilation.compile(source);
+            messages = compilation.getMessages();
+        } catch (Exception e) {
+            // Syntax errors end up here
+            success = false;
+            messages = compilation.getMessages() + e.getMessage() + "\n";
+        } finally {
+            source.close();
+        }
+
+        CompileServer.reply(out, success, messages, compilation.ir3, compilation.asm);
+    }
+
+    private static void reply(Writer out, boolean success, String messages, String ir3, String asm) throws IOException {
+        out.write(success ? "ok\n" : "error\n");
+        CompileServer.writeSection(out, "messages", messages);
+        CompileServer.writeSection(out, "ir3", ir3);
+        CompileServer.writeSection(out, "asm", asm);
+        out.flush();
+    }
+
+    private static void writeSection(Writer out, String name, String content) throws IOException {
+        out.write(String.format("%s %d\n", name, content.length()));
+        out.write(content);
+    }
+
+    /**
+     * Usage: java Parser --server [port] [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        CompileServer server = new CompileServer(port, threads);
+        System.err.format("siaolang compile server listening on localhost:%d\n", server.getPort());
+        server.serve();
+    }
+}
@@ -0,0 +1,561 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Conditional constant propagation on the IR3 of a method
+ * (Wegman and Zadeck)
+ *
+ * Every Int and Bool variable starts out undefined (TOP) and can only
+ * go down to a constant and then to "not a constant" (BOTTOM).
+ * Blocks are only visited once an edge into them is known to be taken,
+ * so a branch on a constant never lets values in from the other side.
+ *
+ * Afterwards the constants are substituted into the statements,
+ * expressions on constants are folded and branches on constants become
+ * gotos (or go away).
+ */
+class ConstantPropagation {
+    private static final int TOP = 0;
+    private static final int CONST = 1;
+    private static final int BOTTOM = 2;
+
+    /**
+     * Value of every variable at a point
+     */
+    private static class State {
+        int[] kind;
+        int[] value;
+
+        State(int numVars, int kind) {
+            this.kind = new int[numVars];
+            this.value = new int[numVars];
+            Arrays.fill(this.kind, kind);
+        }
+
+        State copy() {
+            State s = new State(0, TOP);
+            s.kind = kind.clone();
+            s.value = value.clone();
+            return s;
+        }
+
+        /**
+         * Meets another state into this one, returns true if this changed
+         */
+        boolean meet(State other) {
+            boolean changed = false;
+            for (int v = 0; v < kind.length; v++) {
+                int k = kind[v];
+                int val = value[v];
+
+                if (other.kind[v] == TOP || k == BOTTOM) {
+                    continue;
+                } else if (k == TOP) {
+                    k = other.kind[v];
+                    val = other.value[v];
+                } else if (other.kind[v] == BOTTOM || other.value[v] != val) {
+                    k = BOTTOM;
+                }
+
+                if (k != kind[v] || val != value[v]) {
+                    kind[v] = k;
+                    value[v] = val;
+                    changed = true;
+                }
+            }
+
+            return changed;
+        }
+    }
+
+    /**
+     * A lattice value: kind and value
+     */
+    private static class Value {
+        static final Value UNKNOWN = new Value(TOP, 0);
+        static final Value VARYING = new Value(BOTTOM, 0);
+
+        final int kind;
+        final int value;
+
+        Value(int kind, int value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    private CMtd3 mtd;
+    private ArrayList<BasicBlock> blocks;
+    private HashMap<BasicBlock, Integer> blockIndices = new HashMap<>();
+    private HashMap<String, BasicBlock> labelledBlocks = new HashMap<>();
+
+    // Only Int and Bool variables are followed
+    private boolean[] tracked;
+    private boolean[] isBool;
+
+    private State[] in;
+    private HashSet<Long> executableEdges = new HashSet<>();
+
+    // Branches that are never taken
+    private HashSet<Stmt3> removedStmts = new HashSet<>();
+
+    private ConstantPropagation(CMtd3 mtd) {
+        this.mtd = mtd;
+        this.blocks = BasicBlock.fromCMtd3(mtd);
+
+        for (int i = 0; i < blocks.size(); i++) {
+            BasicBlock blk = blocks.get(i);
+            blockIndices.put(blk, i);
+
+            Stmt3 first = blk.stmts.get(0);
+            if (first.type == Stmt3.StmtType.Label) {
+                labelledBlocks.put(first.children.get(0).getLabelledValue(), blk);
+            }
+        }
+
+        int numVars = mtd.getNumVars();
+        tracked = new boolean[numVars];
+        isBool = new boolean[numVars];
+        // Formals come from the caller and are never followed
+        for (int i = 0; i < mtd.vardecl3s.size(); i++) {
+            int varIdx = mtd.fmllist3.size() + i;
+            String type = mtd.vardecl3s.get(i).type;
+            tracked[varIdx] = type.equals("Int") || type.equals("Bool");
+            isBool[varIdx] = type.equals("Bool");
+        }
+    }
+
+    public static void run(CMtd3 mtd) {
+        ConstantPropagation cp = new ConstantPropagation(mtd);
+        if (cp.blocks.isEmpty()) {
+            return;
+        }
+
+        cp.propagate();
+        cp.rewrite();
+    }
+
+    private void propagate() {
+        int numVars = mtd.getNumVars();
+
+        in = new State[blocks.size()];
+        State entry = new State(numVars, TOP);
+        for (int v = 0; v < numVars; v++) {
+            if (!tracked[v]) {
+                entry.kind[v] = BOTTOM;
+            }
+        }
+        in[0] = entry;
+
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        boolean[] queued = new boolean[blocks.size()];
+        worklist.add(0);
+        queued[0] = true;
+
+        while (!worklist.isEmpty()) {
+            int b = worklist.pollFirst();
+            queued[b] = false;
+
+            State state = in[b].copy();
+            BasicBlock blk = blocks.get(b);
+            for (Stmt3 stmt : blk.stmts) {
+                this.transfer(stmt, state);
+            }
+
+            for (int succ : this.getTakenSuccessors(b, state)) {
+                boolean newEdge = executableEdges.add(((long) b << 32) | succ);
+
+                boolean changed;
+                if (in[succ] == null) {
+                    in[succ] = state.copy();
+                    changed = true;
+                } else {
+                    changed = in[succ].meet(state);
+                }
+
+                if ((changed || newEdge) && !queued[succ]) {
+                    queued[succ] = true;
+                    worklist.add(succ);
+                }
+            }
+        }
+    }
+
+    /**
+     * Successors of a block that can be taken, given the state at its end
+     */
+    private List<Integer> getTakenSuccessors(int b, State state) {
+        ArrayList<Integer> succs = new ArrayList<>();
+        BasicBlock blk = blocks.get(b);
+        Stmt3 last = blk.stmts.get(blk.stmts.size() - 1);
+
+        switch (last.type) {
+            case Goto:
+                succs.add(blockIndices.get(labelledBlocks.get(last.children.get(0).getLabelledValue())));
+                break;
+
+            case ReturnT:
+            case ReturnV:
+                break;
+
+            case IfGoto:
+                Value cond = this.evaluate(last.children.get(0), state);
+                if (cond.kind == TOP) {
+                    break;
+                }
+
+                if (cond.kind == BOTTOM || cond.value != 0) {
+                    succs.add(blockIndices.get(labelledBlocks.get(last.children.get(1).getLabelledValue())));
+                }
+                if ((cond.kind == BOTTOM || cond.value == 0) && b + 1 < blocks.size()) {
+                    succs.add(b + 1);
+                }
+                break;
+
+            default:
+                if (b + 1 < blocks.size()) {
+                    succs.add(b + 1);
+                }
+                break;
+        }
+
+        return succs;
+    }
+
+    private void transfer(Stmt3 stmt, State state) {
+        int varIdx;
+        switch (stmt.type) {
+            case LAssign:
+                varIdx = mtd.getVarIndex(stmt.children.get(0).getLabelledValue());
+                if (varIdx >= 0 && tracked[varIdx]) {
+                    Value val = this.evaluate(stmt.children.get(1), state);
+                    state.kind[varIdx] = val.kind;
+                    state.value[varIdx] = val.value;
+                }
+                break;
+
+            case ReadLn:
+                varIdx = mtd.getVarIndex(stmt.children.get(0).getLabelledValue());
+                if (varIdx >= 0) {
+                    state.kind[varIdx] = BOTTOM;
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Value of an expression in a state
+     */
+    private Value evaluate(Node exp, State state) {
+        switch (exp.type) {
+            case Integer:
+                return new Value(CONST, Integer.parseInt(exp.getLabelledValue()));
+
+            case BGrd:
+                return new Value(CONST, exp.getLabelledValue().equals("true") ? 1 : 0);
+
+            case Identifier:
+            case Id3: {
+                int varIdx = mtd.getVarIndex(exp.getLabelledValue());
+                if (varIdx < 0 || !tracked[varIdx]) {
+                    return Value.VARYING;
+                }
+
+                return new Value(state.kind[varIdx], state.value[varIdx]);
+            }
+
+            case BNeg:
+            case INeg: {
+                Value val = this.evaluate(exp.children.get(0), state);
+                if (val.kind != CONST) {
+                    return val;
+                }
+
+                return new Value(CONST, (exp.type == Node.NodeType.BNeg) ? 1 - val.value : -val.value);
+            }
+
+            case Exp: {
+                String op = exp.children.get(1).getLabelledValue();
+                Value lhs = this.evaluate(exp.children.get(0), state);
+                Value rhs = this.evaluate(exp.children.get(2), state);
+
+                // Decided by one side alone
+                if ((op.equals("&&") && (isZero(lhs) || isZero(rhs)))
+                    || (op.equals("*") && (isZero(lhs) || isZero(rhs)))) {
+                    return new Value(CONST, 0);
+                }
+                if (op.equals("||") && (isOne(lhs) || isOne(rhs))) {
+                    return new Value(CONST, 1);
+                }
+
+                if (lhs.kind == BOTTOM || rhs.kind == BOTTOM) {
+                    return Value.VARYING;
+                }
+                if (lhs.kind == TOP || rhs.kind == TOP) {
+                    return Value.UNKNOWN;
+                }
+
+                return ConstantPropagation.fold(op, lhs.value, rhs.value);
+            }
+
+            default:
+                return Value.VARYING;
+        }
+    }
+
+    private static boolean isZero(Value val) {
+        return val.kind == CONST && val.value == 0;
+    }
+
+    private static boolean isOne(Value val) {
+        return val.kind == CONST && val.value == 1;
+    }
+
+    private static Value fold(String op, int lhs, int rhs) {
+        switch (op) {
+            case "+":  return new Value(CONST, lhs + rhs);
+            case "-":  return new Value(CONST, lhs - rhs);
+            case "*":  return new Value(CONST, lhs * rhs);
+            case "<":  return new Value(CONST, (lhs < rhs) ? 1 : 0);
+            case ">":  return new Value(CONST, (lhs > rhs) ? 1 : 0);
+            case "<=": return new Value(CONST, (lhs <= rhs) ? 1 : 0);
+            case ">=": return new Value(CONST, (lhs >= rhs) ? 1 : 0);
+            case "==": return new Value(CONST, (lhs == rhs) ? 1 : 0);
+            case "!=": return new Value(CONST, (lhs != rhs) ? 1 : 0);
+            case "&&": return new Value(CONST, lhs & rhs);
+            case "||": return new Value(CONST, lhs | rhs);
+
+            case "/":
+                // Left to the program
+                return (rhs == 0) ? Value.VARYING : new Value(CONST, lhs / rhs);
+
+            default:
+                return Value.VARYING;
+        }
+    }
+
+    /**
+     * Substitutes and folds the constants found, going through
+     * every reachable block again with its final state
+     */
+    private void rewrite() {
+        for (int b = 0; b < blocks.size(); b++) {
+            if (in[b] == null) {
+                // Never reached
+                continue;
+            }
+
+            State state = in[b].copy();
+            BasicBlock blk = blocks.get(b);
+
+            for (Stmt3 stmt : blk.stmts) {
+                this.substitute(stmt, state);
+                this.transfer(stmt, state);
+            }
+        }
+
+        ArrayList<Stmt3> stmts = new ArrayList<>(mtd.stmts);
+        stmts.removeIf(removedStmts::contains);
+
+        this.removeConstantTemporaries(stmts);
+        mtd.stmts = stmts;
+    }
+
+    /**
+     * Replaces the variables read by a statement that are constant
+     * before it, and folds what is constant
+     */
+    private void substitute(Stmt3 stmt, State state) {
+        switch (stmt.type) {
+            case LAssign: {
+                int varIdx = mtd.getVarIndex(stmt.children.get(0).getLabelledValue());
+                Value val = this.evaluate(stmt.children.get(1), state);
+
+                if (varIdx >= 0 && tracked[varIdx] && val.kind == CONST) {
+                    stmt.children.set(1, this.toLiteral(val.value, isBool[varIdx]));
+                } else {
+                    this.substituteOperands(stmt.children.get(1), state);
+                }
+                break;
+            }
+
+            case FAssign: {
+                Node rhs = stmt.children.get(2);
+                Value val = this.evaluate(rhs, state);
+
+                if (val.kind == CONST) {
+                    stmt.children.set(2, this.toLiteral(val.value, this.isBoolExpr(rhs)));
+                } else {
+                    this.substituteOperands(rhs, state);
+                }
+                break;
+            }
+
+            case Call:
+                this.substituteOperands(stmt.children.get(1), state);
+                break;
+
+            case PrintLn:
+            case ReturnT:
+                stmt.children.set(0, this.substituteOperand(stmt.children.get(0), state));
+                break;
+
+            case IfGoto: {
+                Value cond = this.evaluate(stmt.children.get(0), state);
+                if (cond.kind != CONST) {
+                    break;
+                }
+
+                if (cond.value != 0) {
+                    // Always taken
+                    Node label = stmt.children.get(1);
+                    stmt.type = Stmt3.StmtType.Goto;
+                    stmt.children.clear();
+                    stmt.children.add(label);
+                } else {
+                    removedStmts.add(stmt);
+                }
+                break;
+            }
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Substitutes the operands of an expression
+     */
+    private void substituteOperands(Node exp, State state) {
+        switch (exp.type) {
+            case Exp:
+                exp.children.set(0, this.substituteOperand(exp.children.get(0), state));
+                exp.children.set(2, this.substituteOperand(exp.children.get(2), state));
+                break;
+
+            case BNeg:
+            case INeg:
+                exp.children.set(0, this.substituteOperand(exp.children.get(0), state));
+                break;
+
+            case ExpList:
+                for (int i = 0; i < exp.children.size(); i++) {
+                    exp.children.set(i, this.substituteOperand(exp.children.get(i), state));
+                }
+                break;
+
+            case Call:
+                this.substituteOperands(exp.children.get(1), state);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private Node substituteOperand(Node operand, State state) {
+        if (operand.type != Node.NodeType.Identifier && operand.type != Node.NodeType.Id3) {
+            return operand;
+        }
+
+        int varIdx = mtd.getVarIndex(operand.getLabelledValue());
+        if (varIdx < 0 || !tracked[varIdx] || state.kind[varIdx] != CONST) {
+            return operand;
+        }
+
+        return this.toLiteral(state.value[varIdx], isBool[varIdx]);
+    }
+
+    /**
+     * Whether an expression that evaluated to a constant is a Bool
+     */
+    private boolean isBoolExpr(Node exp) {
+        switch (exp.type) {
+            case BGrd:
+            case BNeg:
+                return true;
+
+            case Identifier:
+            case Id3:
+                return isBool[mtd.getVarIndex(exp.getLabelledValue())];
+
+            case Exp:
+                switch (exp.children.get(1).getLabelledValue()) {
+                    case "+":
+                    case "-":
+                    case "*":
+                    case "/":
+                        return false;
+
+                    default:
+                        return true;
+                }
+
+            default:
+                return false;
+        }
+    }
+
+    private Node toLiteral(int value, boolean isBool) {
+        if (isBool) {
+            Node bool = new Node(Node.NodeType.BGrd, (value != 0) ? "true" : "false");
+            bool.note = "Bool";
+            return bool;
+        }
+
+        Node integer = new Node(Node.NodeType.Integer, Integer.toString(value));
+        integer.note = "Int";
+        return integer;
+    }
+
+    /**
+     * Temporaries that got a constant are not read any more: drop them
+     */
+    private void removeConstantTemporaries(ArrayList<Stmt3> stmts) {
+        HashSet<String> read = new HashSet<>();
+        for (Stmt3 stmt : stmts) {
+            int start = (stmt.type == Stmt3.StmtType.LAssign) ? 1 : 0;
+            for (int i = start; i < stmt.children.size(); i++) {
+                ConstantPropagation.collectNames(stmt.children.get(i), read);
+            }
+        }
+
+        HashSet<String> removed = new HashSet<>();
+        stmts.removeIf(stmt -> {
+            if (stmt.type != Stmt3.StmtType.LAssign) {
+                return false;
+            }
+
+            String id = stmt.children.get(0).getLabelledValue();
+            Node rhs = stmt.children.get(1);
+            boolean isConstant = rhs.type == Node.NodeType.Integer || rhs.type == Node.NodeType.BGrd;
+
+            if (isConstant && id.startsWith("_t") && !read.contains(id)) {
+                removed.add(id);
+                return true;
+            }
+
+            return false;
+        });
+
+        mtd.vardecl3s.removeIf(vdecl -> removed.contains(vdecl.id));
+    }
+
+    private static void collectNames(Node node, HashSet<String> names) {
+        if (node.type == Node.NodeType.Identifier || node.type == Node.NodeType.Id3) {
+            names.add(node.getLabelledValue());
+            return;
+        }
+
+        for (Node child : node.children) {
+            ConstantPropagation.collectNames(child, names);
+        }
+    }
+}
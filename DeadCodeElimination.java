@@ -0,0 +1,200 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Dead code elimination on the IR3 of a method
+ *
+ * Removes blocks that can't be reached from the start of the method,
+ * assignments to variables that are never read afterwards (unless they
+ * call something), branches to the next statement and labels nothing
+ * jumps to. Variables left without any use are dropped from vardecl3s,
+ * which shrinks the stack frame.
+ */
+class DeadCodeElimination {
+    public static void run(CMtd3 mtd) {
+        boolean changed = true;
+
+        while (changed) {
+            ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+            if (blocks.isEmpty()) {
+                break;
+            }
+
+            changed = DeadCodeElimination.removeUnreachableBlocks(mtd, blocks);
+            if (changed) {
+                continue;
+            }
+
+            changed = DeadCodeElimination.removeDeadAssignments(mtd, blocks)
+                | DeadCodeElimination.removeUselessJumps(mtd);
+        }
+
+        DeadCodeElimination.removeUnusedVariables(mtd);
+    }
+
+    private static boolean removeUnreachableBlocks(CMtd3 mtd, ArrayList<BasicBlock> blocks) {
+        HashSet<BasicBlock> reached = new HashSet<>();
+        ArrayDeque<BasicBlock> queue = new ArrayDeque<>();
+        queue.add(blocks.get(0));
+        reached.add(blocks.get(0));
+
+        while (!queue.isEmpty()) {
+            for (BasicBlock nxt : queue.pollFirst().next) {
+                if (reached.add(nxt)) {
+                    queue.add(nxt);
+                }
+            }
+        }
+
+        if (reached.size() == blocks.size()) {
+            return false;
+        }
+
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+        for (BasicBlock blk : blocks) {
+            if (reached.contains(blk)) {
+                stmts.addAll(blk.stmts);
+            }
+        }
+
+        mtd.stmts = stmts;
+        return true;
+    }
+
+    /**
+     * Goes backwards through every block, keeping track of what is live
+     */
+    private static boolean removeDeadAssignments(CMtd3 mtd, ArrayList<BasicBlock> blocks) {
+        HashSet<Stmt3> dead = new HashSet<>();
+
+        for (BasicBlock blk : blocks) {
+            BitSet live = (BitSet) blk.liveOut.clone();
+
+            for (int i = blk.stmts.size() - 1; i >= 0; i--) {
+                Stmt3 stmt = blk.stmts.get(i);
+
+                if (stmt.type == Stmt3.StmtType.LAssign) {
+                    int varIdx = mtd.getVarIndex(stmt.children.get(0).getLabelledValue());
+
+                    if (varIdx >= 0 && !live.get(varIdx)) {
+                        Node rhs = stmt.children.get(1);
+
+                        if (rhs.type != Node.NodeType.Call) {
+                            dead.add(stmt);
+                            continue;
+                        }
+
+                        // Keep the call, drop the result
+                        stmt.type = Stmt3.StmtType.Call;
+                        stmt.children = new ArrayList<>(rhs.children);
+                    }
+                }
+
+                int def = blk.getDef(stmt);
+                if (def >= 0) {
+                    live.clear(def);
+                }
+                blk.addUses(stmt, live);
+            }
+        }
+
+        if (dead.isEmpty()) {
+            return false;
+        }
+
+        mtd.stmts.removeIf(dead::contains);
+        return true;
+    }
+
+    /**
+     * Constant branches, jumps to the very next statement,
+     * and labels that are never jumped to
+     */
+    private static boolean removeUselessJumps(CMtd3 mtd) {
+        boolean changed = false;
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+
+        for (int i = 0; i < mtd.stmts.size(); i++) {
+            Stmt3 stmt = mtd.stmts.get(i);
+
+            if (stmt.type == Stmt3.StmtType.IfGoto && stmt.children.get(0).type == Node.NodeType.BGrd) {
+                changed = true;
+                if (stmt.children.get(0).getLabelledValue().equals("false")) {
+                    continue;
+                }
+
+                Node label = stmt.children.get(1);
+                stmt.type = Stmt3.StmtType.Goto;
+                stmt.children.clear();
+                stmt.children.add(label);
+            }
+
+            String target = DeadCodeElimination.getTarget(stmt);
+            if (target != null && i + 1 < mtd.stmts.size()) {
+                Stmt3 next = mtd.stmts.get(i + 1);
+                if (next.type == Stmt3.StmtType.Label && next.children.get(0).getLabelledValue().equals(target)) {
+                    changed = true;
+                    continue;
+                }
+            }
+
+            stmts.add(stmt);
+        }
+
+        HashMap<String, Integer> uses = new HashMap<>();
+        for (Stmt3 stmt : stmts) {
+            String target = DeadCodeElimination.getTarget(stmt);
+            if (target != null) {
+                uses.merge(target, 1, Integer::sum);
+            }
+        }
+
+        changed |= stmts.removeIf(stmt ->
+            stmt.type == Stmt3.StmtType.Label && !uses.containsKey(stmt.children.get(0).getLabelledValue())
+        );
+
+        mtd.stmts = stmts;
+        return changed;
+    }
+
+    /**
+     * The label a statement may jump to, or null
+     */
+    private static String getTarget(Stmt3 stmt) {
+        switch (stmt.type) {
+            case Goto:
+                return stmt.children.get(0).getLabelledValue();
+
+            case IfGoto:
+                return stmt.children.get(1).getLabelledValue();
+
+            default:
+                return null;
+        }
+    }
+
+    static void removeUnusedVariables(CMtd3 mtd) {
+        HashSet<String> used = new HashSet<>();
+        for (Stmt3 stmt : mtd.stmts) {
+            for (Node child : stmt.children) {
+                DeadCodeElimination.collectNames(child, used);
+            }
+        }
+
+        mtd.vardecl3s.removeIf(vdecl -> !used.contains(vdecl.id));
+    }
+
+    private static void collectNames(Node node, HashSet<String> names) {
+        if (node.type == Node.NodeType.Identifier || node.type == Node.NodeType.Id3 || node.type == Node.NodeType.This) {
+            names.add(node.getLabelledValue());
+            return;
+        }
+
+        for (Node child : node.children) {
+            DeadCodeElimination.collectNames(child, names);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -75,8 +76,12 @@ public class ErrorManager {
     }
 
     public void printAll() {
+        this.printAll(System.out);
+    }
+
+    public void printAll(PrintStream out) {
         for (Error err : this.errors) {
-            System.out.println(err.toString());
+            out.println(err.toString());
         }
     }
 }
\ No newline at end of file
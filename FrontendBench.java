@@ -0,0 +1,126 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks the front end (parsing + typechecking).
+ *
+ * Every non-main class of each input file is copied N times under
+ * fresh class names to get a large program. The old front end parsed
+ * the source twice, the second parse doing the typechecking in its
+ * actions. Those actions are gone, so the old cost is estimated by
+ * timing two real parses plus the typecheck walk, and compared with
+ * one parse plus the walk.
+ *
+ * Usage: java FrontendBench [-n copies] [-r rounds] [dir or file]...
+ */
+class FrontendBench {
+    private static final Pattern CLASS_DECL = Pattern.compile("\\bclass\\s+([A-Z][A-Za-z0-9_]*)");
+
+    public static void main(String[] args) throws Exception {
+        int copies = 200;
+        int rounds = 10;
+        ArrayList<String> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                copies = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            inputs.addAll(Arrays.asList("testcases", "oldcases"));
+        }
+
+        System.out.format("%-28s %9s %10s %10s %12s %12s %9s\n",
+            "file", "bytes", "parse ms", "check ms", "est. 2-pass", "1-pass ms", "est. gain");
+
+        for (File file : Utils.collectSources(inputs)) {
+            String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            File scaled = File.createTempFile("bench", ".j");
+            scaled.deleteOnExit();
+            Files.write(scaled.toPath(), FrontendBench.scale(source, copies).getBytes(StandardCharsets.UTF_8));
+
+            long parseTime = Long.MAX_VALUE, reparseTime = Long.MAX_VALUE, checkTime = Long.MAX_VALUE;
+
+            try {
+                // Warm up first, then keep the best round
+                for (int i = 0; i < rounds * 2; i++) {
+                    long reparse, parse, check;
+
+                    // The second parse of the old front end, without its typechecking actions
+                    try (CharBufferReader reader = CharBufferReader.open(scaled)) {
+                        long start = System.nanoTime();
+                        new Compilation(false).parse(reader);
+                        reparse = System.nanoTime() - start;
+                    }
+
+                    Compilation compilation = new Compilation(false);
+                    try (CharBufferReader reader = CharBufferReader.open(scaled)) {
+                        long start = System.nanoTime();
+                        Node program = compilation.parse(reader);
+                        long parsed = System.nanoTime();
+                        compilation.typecheck(program);
+                        parse = parsed - start;
+                        check = System.nanoTime() - parsed;
+                    }
+
+                    if (i >= rounds) {
+                        reparseTime = Math.min(reparseTime, reparse);
+                        parseTime = Math.min(parseTime, parse);
+                        checkTime = Math.min(checkTime, check);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.format("%-28s skipped: %s\n", file.getPath(), e.getMessage());
+                continue;
+            }
+
+            double parseMs = parseTime / 1e6, checkMs = checkTime / 1e6;
+            double twoPass = reparseTime / 1e6 + parseMs + checkMs, onePass = parseMs + checkMs;
+
+            System.out.format("%-28s %9d %10.2f %10.2f %12.2f %12.2f %8.2fx\n",
+                file.getPath(), scaled.length(), parseMs, checkMs, twoPass, onePass, twoPass / onePass);
+        }
+    }
+
+    /**
+     * Keeps the main class and appends copies of every other class,
+     * with the class names in copy k suffixed by _k.
+     */
+    static String scale(String source, int copies) {
+        Matcher m = CLASS_DECL.matcher(source);
+        if (!m.find() || !m.find()) {
+            return source;
+        }
+
+        String main = source.substring(0, m.start());
+        String rest = source.substring(m.start());
+
+        LinkedHashSet<String> cnames = new LinkedHashSet<>();
+        Matcher names = CLASS_DECL.matcher(rest);
+        while (names.find()) {
+            cnames.add(names.group(1));
+        }
+
+        Pattern cnamePattern = Pattern.compile("\\b(" + String.join("|", cnames) + ")\\b");
+        StringBuilder sb = new StringBuilder(main);
+        sb.append(rest);
+
+        for (int k = 1; k < copies; k++) {
+            sb.append('\n');
+            sb.append(cnamePattern.matcher(rest).replaceAll("$1_" + k));
+        }
+
+        return sb.toString();
+    }
+}
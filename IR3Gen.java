@@ -2,6 +2,7 @@ import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -89,7 +90,9 @@ class Stmt3 {
         FAssign("%s.%s = %s;"),
         Call("%s(%s);"),
         ReturnT("return %s;"),
-        ReturnV("return;");
+        ReturnV("return;"),
+        // Only in SSA form: dest, the values, and the labels of the blocks they come from
+        Phi("%s = phi(%s);");
 
         private String value;
 
@@ -126,6 +129,11 @@ class CMtd3 {
     private int numTemporaries = 0;
     private int numLabels = 0;
 
+    // Dense numbering of formals, locals and temporaries
+    private HashMap<String, Integer> varIndices = new HashMap<>();
+    private List<VarDecl3> indexedDecls = null;
+    private int numIndexed = 0;
+
     public CMtd3(String cname, Node cmtd) {
         this.type = cmtd.children.get(0).data;
         this.id = cmtd.children.get(1).getLabelledValue();
@@ -136,9 +144,9 @@ class CMtd3 {
             this.fmllist3.add(new VarDecl3(fml));
         }
 
-        // Mangle the name if it's not main
+        // Use the mangled name if it's not main
         if (cmtd.note != "_main_") {
-            this.id = IR3Gen.getMangledName(cname, this.id, cmtd.note);
+            this.id = cmtd.msig;
         }
 
         this.parseBody(cmtd.children.get(cmtd.children.size() - 1));
@@ -166,6 +174,36 @@ class CMtd3 {
         return tempVar;
     }
 
+    /**
+     * Returns the number of a formal, local or temporary,
+     * or -1 if id is none of these
+     */
+    public int getVarIndex(String id) {
+        // Temporaries can be added after the first lookup,
+        // and optimizations can replace vardecl3s as a whole
+        if (numIndexed != this.getNumVars() || indexedDecls != vardecl3s) {
+            varIndices.clear();
+            for (int i = 0; i < fmllist3.size(); i++) {
+                varIndices.putIfAbsent(fmllist3.get(i).id, i);
+            }
+            for (int i = 0; i < vardecl3s.size(); i++) {
+                varIndices.putIfAbsent(vardecl3s.get(i).id, fmllist3.size() + i);
+            }
+            numIndexed = this.getNumVars();
+            indexedDecls = vardecl3s;
+        }
+
+        return varIndices.getOrDefault(id, -1);
+    }
+
+    public int getNumVars() {
+        return fmllist3.size() + vardecl3s.size();
+    }
+
+    public int getNumLabels() {
+        return numLabels;
+    }
+
     public String getFreeLabel() {
         return Integer.toString(numLabels++);
     }
@@ -223,25 +261,56 @@ class IR3Gen {
         Id3Only;
     }
 
-    private static boolean optimize = false;
-
     static IR3 fromAST(Node ast, boolean optimize) {
         IR3 ir3 = new IR3();
         ir3.cdata3s = ast.children.stream().map(x -> new CData3(x)).collect(Collectors.toList());
-        ir3.cmtd3s = new ArrayList<>();
-
-        // Set global setting
-        IR3Gen.optimize = optimize;
 
+        ArrayList<Pair<String, Node>> mdecls = new ArrayList<>();
         for (CData3 cd : ir3.cdata3s) {
             for (Node mdecl : cd.mdecls) {
-                ir3.cmtd3s.add(new CMtd3(cd.cname3, mdecl));
+                mdecls.add(new Pair<>(cd.cname3, mdecl));
             }
         }
 
+        // Methods only share the typechecked AST, which is read-only by now,
+        // so they are lowered (and optimized) in parallel
+        // (the result keeps declaration order)
+        ir3.cmtd3s = mdecls.parallelStream()
+            .map(x -> new CMtd3(x.head, x.tail))
+            .collect(Collectors.toList());
+
+        if (optimize) {
+            // Inlining looks across methods, so it goes first, on its own
+            Inliner.run(ir3.cmtd3s);
+            ir3.cmtd3s.parallelStream().forEach(IR3Gen::optimize);
+        }
+
         return ir3;
     }
 
+    /**
+     * Optimizations on the IR3 of a method, for -O
+     */
+    static void optimize(CMtd3 cmtd) {
+        TailRecursion.run(cmtd);
+        ConstantPropagation.run(cmtd);
+
+        SSA.construct(cmtd);
+        Coalescing.propagateCopies(cmtd);
+        ValueNumbering.run(cmtd);
+        Coalescing.propagateCopies(cmtd);
+        LoopInvariantCodeMotion.run(cmtd);
+        SSA.destruct(cmtd);
+
+        // Value numbering can forward constants stored to fields
+        ConstantPropagation.run(cmtd);
+
+        DeadCodeElimination.run(cmtd);
+        BlockLayout.run(cmtd);
+        BranchFusion.run(cmtd);
+        Coalescing.mergeTemporaries(cmtd);
+    }
+
     static List<Stmt3> fromStmts(CMtd3 mtd, List<Node> stmts) {
         ArrayList<Stmt3> res = new ArrayList<>();
 
@@ -484,7 +553,7 @@ class IR3Gen {
             newExp = new Node(Node.NodeType.Call);
             Pair<List<Node>, List<Stmt3>> callExpr = IR3Gen.fromCall(mtd, exp);
             newExp.children.addAll(callExpr.head);
-            newExp.note = exp.note.split("_")[0];
+            newExp.note = exp.note;
             varDecls.addAll(callExpr.tail);
         }
 
@@ -492,7 +561,7 @@ class IR3Gen {
             return new Pair<>(newExp, varDecls);
         } else {
             // Temporary variable
-            String newTemp = mtd.addTemporary(exp.note.split("_")[0]);
+            String newTemp = mtd.addTemporary(exp.note);
 
             Stmt3 tempAss = new Stmt3(Stmt3.StmtType.LAssign);
             tempAss.children.add(new Node(Node.NodeType.Id3, newTemp));
@@ -510,7 +579,6 @@ class IR3Gen {
         Pair<Node, List<Stmt3>> fieldPair = IR3Gen.fromExp(mtd, exp.children.get(0), EnumSet.noneOf(ParsingFlag.class));
         Node field = fieldPair.head;
         String ctx = field.children.get(0).getLabelledValue();
-        String mdname = field.children.get(1).getLabelledValue();
 
         ArrayList<Stmt3> varDecls = new ArrayList<>();
         varDecls.addAll(fieldPair.tail);
@@ -518,7 +586,7 @@ class IR3Gen {
         newCallChildren.add(
             new Node(
                 Node.NodeType.Id3,
-                IR3Gen.getMangledName(field.note, mdname, exp.msig)
+                exp.msig
             )
         );
 
@@ -538,10 +606,4 @@ class IR3Gen {
 
         return new Pair<>(newCallChildren, varDecls);
     }
-
-    static String getMangledName(String cname, String mdname, String msig) {
-        String mangledMsig = String.join("_", msig.split(","));
-
-        return String.format("_%s", String.join("_", cname, mdname, mangledMsig));
-    }
 }
\ No newline at end of file
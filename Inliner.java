@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Inlining of small methods on the IR3 of a program
+ *
+ * The call graph is built from the Call statements and expressions of
+ * every method (by their mangled names), and its strongly connected
+ * components are visited callees first, so a method is inlined with
+ * the calls in it already inlined. A call is replaced with the body of
+ * its callee when that is at most INLINE_SIZE statements, and the callee
+ * isn't on a cycle of calls (recursion is left alone).
+ *
+ * The formals, locals and temporaries of the callee become temporaries
+ * of the caller, the arguments are copied into them, labels are
+ * renumbered, and a return becomes a copy into the destination of the
+ * call and a jump to after the body.
+ */
+class Inliner {
+    // Most statements (without labels) a method can have to be inlined
+    private static final int INLINE_SIZE = 12;
+
+    private HashMap<String, CMtd3> methods = new HashMap<>();
+
+    // Method -> the methods it calls
+    private HashMap<String, HashSet<String>> callees = new HashMap<>();
+
+    // Methods on a cycle of calls
+    private HashSet<String> recursive = new HashSet<>();
+
+    // Tarjan's bookkeeping
+    private HashMap<String, Integer> index = new HashMap<>();
+    private HashMap<String, Integer> lowLink = new HashMap<>();
+    private ArrayList<String> stack = new ArrayList<>();
+    private HashSet<String> onStack = new HashSet<>();
+
+    private Inliner(List<CMtd3> mtds) {
+        for (CMtd3 mtd : mtds) {
+            methods.put(mtd.id, mtd);
+        }
+
+        for (CMtd3 mtd : mtds) {
+            HashSet<String> called = new HashSet<>();
+            for (Stmt3 stmt : mtd.stmts) {
+                Node call = Inliner.getCall(stmt);
+                if (call != null && methods.containsKey(call.children.get(0).getLabelledValue())) {
+                    called.add(call.children.get(0).getLabelledValue());
+                }
+            }
+            callees.put(mtd.id, called);
+        }
+    }
+
+    public static void run(List<CMtd3> mtds) {
+        Inliner inliner = new Inliner(mtds);
+
+        for (CMtd3 mtd : mtds) {
+            if (!inliner.index.containsKey(mtd.id)) {
+                inliner.visit(mtd.id);
+            }
+        }
+    }
+
+    /**
+     * Tarjan's algorithm, which finishes the components of callees first
+     */
+    private void visit(String id) {
+        index.put(id, index.size());
+        lowLink.put(id, index.get(id));
+        stack.add(id);
+        onStack.add(id);
+
+        for (String callee : callees.get(id)) {
+            if (!index.containsKey(callee)) {
+                this.visit(callee);
+                lowLink.put(id, Math.min(lowLink.get(id), lowLink.get(callee)));
+            } else if (onStack.contains(callee)) {
+                lowLink.put(id, Math.min(lowLink.get(id), index.get(callee)));
+            }
+        }
+
+        if (!lowLink.get(id).equals(index.get(id))) {
+            return;
+        }
+
+        ArrayList<String> component = new ArrayList<>();
+        String member;
+        do {
+            member = stack.remove(stack.size() - 1);
+            onStack.remove(member);
+            component.add(member);
+        } while (!member.equals(id));
+
+        if (component.size() > 1 || callees.get(id).contains(id)) {
+            recursive.addAll(component);
+        }
+
+        for (String mtdId : component) {
+            this.inlineCalls(methods.get(mtdId));
+        }
+    }
+
+    private void inlineCalls(CMtd3 mtd) {
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+        boolean changed = false;
+
+        for (Stmt3 stmt : mtd.stmts) {
+            Node call = Inliner.getCall(stmt);
+            CMtd3 callee = (call != null && stmt.type != Stmt3.StmtType.FAssign)
+                ? methods.get(call.children.get(0).getLabelledValue())
+                : null;
+
+            if (callee == null || recursive.contains(callee.id) || Inliner.getSize(callee) > INLINE_SIZE) {
+                stmts.add(stmt);
+                continue;
+            }
+
+            Node dest = (stmt.type == Stmt3.StmtType.LAssign) ? stmt.children.get(0) : null;
+            stmts.addAll(Inliner.inline(mtd, callee, call, dest));
+            changed = true;
+        }
+
+        if (changed) {
+            mtd.stmts = stmts;
+        }
+    }
+
+    /**
+     * The body of callee in place of a call to it from mtd,
+     * with what it returns copied into dest (if not null)
+     */
+    private static ArrayList<Stmt3> inline(CMtd3 mtd, CMtd3 callee, Node call, Node dest) {
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+        HashMap<String, String> vars = new HashMap<>();
+        HashMap<String, String> labels = new HashMap<>();
+
+        List<Node> args = call.children.get(1).children;
+        for (int i = 0; i < callee.fmllist3.size(); i++) {
+            VarDecl3 fml = callee.fmllist3.get(i);
+            String var = mtd.addTemporary(fml.type);
+            vars.put(fml.id, var);
+
+            // The receiver doesn't have its type noted
+            // (and CodeGen needs it once copies are propagated)
+            Node arg = args.get(i);
+            if (arg.note.isEmpty()) {
+                arg = new Node(arg.type, arg.getLabelledValue());
+                arg.note = fml.type;
+            }
+
+            Node copy = new Node(Node.NodeType.Id3, var);
+            copy.note = fml.type;
+            stmts.add(Inliner.newStmt(Stmt3.StmtType.LAssign, copy, arg));
+        }
+
+        for (VarDecl3 vdecl : callee.vardecl3s) {
+            vars.put(vdecl.id, mtd.addTemporary(vdecl.type));
+        }
+
+        String end = mtd.getFreeLabel();
+        boolean jumpsToEnd = false;
+
+        for (int i = 0; i < callee.stmts.size(); i++) {
+            Stmt3 stmt = callee.stmts.get(i);
+            boolean isLast = (i == callee.stmts.size() - 1);
+
+            switch (stmt.type) {
+                case Label:
+                case Goto: {
+                    String lbl = labels.computeIfAbsent(stmt.children.get(0).getLabelledValue(), x -> mtd.getFreeLabel());
+                    stmts.add(Inliner.newStmt(stmt.type, new Node(lbl)));
+                    break;
+                }
+
+                case IfGoto: {
+                    String lbl = labels.computeIfAbsent(stmt.children.get(1).getLabelledValue(), x -> mtd.getFreeLabel());
+                    stmts.add(Inliner.newStmt(stmt.type, Inliner.copy(stmt.children.get(0), vars), new Node(lbl)));
+                    break;
+                }
+
+                case ReturnT:
+                case ReturnV:
+                    if (stmt.type == Stmt3.StmtType.ReturnT && dest != null) {
+                        // Both get the declared return type, as what is returned
+                        // may be noted otherwise (like "int" for a literal)
+                        Node copy = new Node(Node.NodeType.Id3, dest.getLabelledValue());
+                        copy.note = callee.type;
+
+                        Node value = Inliner.copy(stmt.children.get(0), vars);
+                        if (value == stmt.children.get(0)) {
+                            value = new Node(value.type, value.getLabelledValue());
+                        }
+                        value.note = callee.type;
+                        stmts.add(Inliner.newStmt(Stmt3.StmtType.LAssign, copy, value));
+                    }
+                    if (!isLast) {
+                        stmts.add(Inliner.newStmt(Stmt3.StmtType.Goto, new Node(end)));
+                        jumpsToEnd = true;
+                    }
+                    break;
+
+                default: {
+                    Stmt3 copied = new Stmt3(stmt.type);
+                    for (int c = 0; c < stmt.children.size(); c++) {
+                        Node child = stmt.children.get(c);
+
+                        // The field name of a field assignment isn't a variable
+                        boolean isName = (stmt.type == Stmt3.StmtType.FAssign && c == 1);
+                        copied.children.add(isName ? child : Inliner.copy(child, vars));
+                    }
+                    stmts.add(copied);
+                    break;
+                }
+            }
+        }
+
+        if (jumpsToEnd) {
+            stmts.add(Inliner.newStmt(Stmt3.StmtType.Label, new Node(end)));
+        }
+
+        return stmts;
+    }
+
+    /**
+     * Copies an expression of the callee, renaming its variables
+     */
+    private static Node copy(Node node, HashMap<String, String> vars) {
+        switch (node.type) {
+            case Identifier:
+            case Id3:
+            case This: {
+                String var = vars.get(node.getLabelledValue());
+                if (var == null) {
+                    return node;
+                }
+
+                Node renamed = new Node(Node.NodeType.Id3, var);
+                renamed.note = node.note;
+                return renamed;
+            }
+
+            case Call: {
+                // Skip the method name
+                Node copied = new Node(node.type, node.data);
+                copied.note = node.note;
+                copied.children.add(node.children.get(0));
+                copied.children.add(Inliner.copy(node.children.get(1), vars));
+                return copied;
+            }
+
+            case Field: {
+                // Skip the field name
+                Node copied = new Node(node.type, node.data);
+                copied.note = node.note;
+                copied.children.add(Inliner.copy(node.children.get(0), vars));
+                copied.children.add(node.children.get(1));
+                return copied;
+            }
+
+            default: {
+                Node copied = new Node(node.type, node.data);
+                copied.note = node.note;
+                for (Node child : node.children) {
+                    copied.children.add(Inliner.copy(child, vars));
+                }
+                return copied;
+            }
+        }
+    }
+
+    /**
+     * The call a statement makes, or null
+     */
+    private static Node getCall(Stmt3 stmt) {
+        switch (stmt.type) {
+            case Call:
+                return new Node(Node.NodeType.Call, stmt.children.get(0), stmt.children.get(1));
+
+            case LAssign:
+                return (stmt.children.get(1).type == Node.NodeType.Call) ? stmt.children.get(1) : null;
+
+            case FAssign:
+                return (stmt.children.get(2).type == Node.NodeType.Call) ? stmt.children.get(2) : null;
+
+            default:
+                return null;
+        }
+    }
+
+    private static int getSize(CMtd3 mtd) {
+        int size = 0;
+        for (Stmt3 stmt : mtd.stmts) {
+            if (stmt.type != Stmt3.StmtType.Label) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static Stmt3 newStmt(Stmt3.StmtType type, Node... children) {
+        Stmt3 stmt = new Stmt3(type);
+        for (Node child : children) {
+            stmt.children.add(child);
+        }
+        return stmt;
+    }
+}
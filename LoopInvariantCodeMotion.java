@@ -0,0 +1,297 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Loop-invariant code motion on the IR3 of a method, in SSA form
+ *
+ * Natural loops are found through their back edges (an edge to a block
+ * that dominates where it comes from). Assignments in a loop whose
+ * operands are all defined outside it (or by other invariant
+ * assignments) are moved into a preheader, a new block just before the
+ * loop header that is only entered from outside the loop.
+ *
+ * Only what can't fail or have an effect is moved: arithmetic (but not
+ * division) and field loads from a field the loop never writes, with no
+ * calls in the loop. Loads from anything but this, and divisions, are
+ * only moved out of the header, which runs whenever the preheader does.
+ * Inner loops go first, so what they move out can move further out.
+ */
+class LoopInvariantCodeMotion {
+    /**
+     * A natural loop: its header and all of its blocks (with the header)
+     */
+    private static class Loop {
+        BasicBlock header;
+        LinkedHashSet<BasicBlock> blocks = new LinkedHashSet<>();
+    }
+
+    public static void run(CMtd3 mtd) {
+        HashSet<String> done = new HashSet<>();
+
+        while (true) {
+            ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+            SSA.DominatorTree domTree = new SSA.DominatorTree(blocks.get(0));
+
+            Loop loop = null;
+            for (Loop candidate : LoopInvariantCodeMotion.findLoops(domTree)) {
+                if (done.contains(candidate.header.getLabel())) {
+                    continue;
+                }
+                if (loop == null || candidate.blocks.size() < loop.blocks.size()) {
+                    loop = candidate;
+                }
+            }
+
+            if (loop == null) {
+                return;
+            }
+
+            done.add(loop.header.getLabel());
+            LoopInvariantCodeMotion.hoist(mtd, blocks, domTree, loop);
+        }
+    }
+
+    private static ArrayList<Loop> findLoops(SSA.DominatorTree domTree) {
+        ArrayList<Loop> loops = new ArrayList<>();
+
+        for (int h = 0; h < domTree.blocks.size(); h++) {
+            BasicBlock header = domTree.blocks.get(h);
+            Loop loop = null;
+
+            for (BasicBlock prev : header.previous) {
+                Integer p = domTree.order.get(prev);
+                if (p == null || !domTree.dominates(h, p)) {
+                    continue;
+                }
+
+                // Back edge, everything that reaches it without the header is in the loop
+                if (loop == null) {
+                    loop = new Loop();
+                    loop.header = header;
+                    loop.blocks.add(header);
+                }
+
+                ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+                if (loop.blocks.add(prev)) {
+                    work.add(prev);
+                }
+
+                while (!work.isEmpty()) {
+                    for (BasicBlock blk : work.poll().previous) {
+                        if (domTree.order.containsKey(blk) && loop.blocks.add(blk)) {
+                            work.add(blk);
+                        }
+                    }
+                }
+            }
+
+            if (loop != null) {
+                loops.add(loop);
+            }
+        }
+
+        return loops;
+    }
+
+    private static void hoist(CMtd3 mtd, ArrayList<BasicBlock> blocks, SSA.DominatorTree domTree, Loop loop) {
+        // The preheader takes the place of the one way in
+        ArrayList<Integer> outside = new ArrayList<>();
+        for (int p : domTree.getPrevious(domTree.order.get(loop.header))) {
+            if (!loop.blocks.contains(domTree.blocks.get(p))) {
+                outside.add(p);
+            }
+        }
+
+        if (outside.size() != 1) {
+            return;
+        }
+
+        BasicBlock entry = domTree.blocks.get(outside.get(0));
+        ArrayList<Stmt3> invariant = LoopInvariantCodeMotion.findInvariant(mtd, loop);
+        if (invariant.isEmpty()) {
+            return;
+        }
+
+        String headerLabel = loop.header.getLabel();
+        String preheaderLabel = mtd.getFreeLabel();
+        HashSet<Stmt3> moved = new HashSet<>(invariant);
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock blk = blocks.get(b);
+
+            if (blk == loop.header) {
+                // A block of the loop falling through into the header has to jump over the preheader
+                BasicBlock before = (b > 0) ? blocks.get(b - 1) : null;
+                if (before != null && loop.blocks.contains(before) && LoopInvariantCodeMotion.fallsThrough(before)) {
+                    stmts.add(LoopInvariantCodeMotion.newGoto(headerLabel));
+                }
+
+                Stmt3 label = new Stmt3(Stmt3.StmtType.Label);
+                label.children.add(new Node(preheaderLabel));
+                stmts.add(label);
+                stmts.addAll(invariant);
+            }
+
+            for (Stmt3 stmt : blk.stmts) {
+                if (moved.contains(stmt)) {
+                    continue;
+                }
+
+                if (blk == entry) {
+                    LoopInvariantCodeMotion.retarget(stmt, headerLabel, preheaderLabel);
+                } else if (blk == loop.header && stmt.type == Stmt3.StmtType.Phi) {
+                    // The value from outside now comes through the preheader
+                    List<Node> lbls = stmt.children.get(2).children;
+                    for (int i = 0; i < lbls.size(); i++) {
+                        if (lbls.get(i).getLabelledValue().equals(entry.getLabel())) {
+                            lbls.set(i, new Node(preheaderLabel));
+                        }
+                    }
+                }
+
+                stmts.add(stmt);
+            }
+        }
+
+        mtd.stmts = stmts;
+    }
+
+    /**
+     * The assignments of a loop that can be moved out of it, in an order
+     * where each comes after the ones it reads
+     */
+    private static ArrayList<Stmt3> findInvariant(CMtd3 mtd, Loop loop) {
+        HashSet<String> defined = new HashSet<>();
+        HashSet<String> written = new HashSet<>();
+        boolean hasCall = false;
+
+        for (BasicBlock blk : loop.blocks) {
+            for (Stmt3 stmt : blk.stmts) {
+                if (blk.getDef(stmt) >= 0) {
+                    defined.add(stmt.children.get(0).getLabelledValue());
+                }
+
+                if (stmt.type == Stmt3.StmtType.FAssign) {
+                    written.add(stmt.children.get(1).getLabelledValue());
+                } else if (stmt.type == Stmt3.StmtType.Call
+                    || (stmt.type == Stmt3.StmtType.LAssign && stmt.children.get(1).type == Node.NodeType.Call)) {
+                    hasCall = true;
+                }
+            }
+        }
+
+        ArrayList<Stmt3> invariant = new ArrayList<>();
+        HashSet<Stmt3> found = new HashSet<>();
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (BasicBlock blk : loop.blocks) {
+                for (Stmt3 stmt : blk.stmts) {
+                    if (stmt.type != Stmt3.StmtType.LAssign || found.contains(stmt)) {
+                        continue;
+                    }
+
+                    Node rhs = stmt.children.get(1);
+                    boolean alwaysRuns = (blk == loop.header);
+                    if (!LoopInvariantCodeMotion.isSafe(rhs, alwaysRuns, written, hasCall)
+                        || !LoopInvariantCodeMotion.isInvariant(mtd, rhs, defined)) {
+                        continue;
+                    }
+
+                    found.add(stmt);
+                    invariant.add(stmt);
+                    defined.remove(stmt.children.get(0).getLabelledValue());
+                    changed = true;
+                }
+            }
+        }
+
+        return invariant;
+    }
+
+    /**
+     * Whether evaluating an expression before the loop can't fail or
+     * give a different value
+     */
+    private static boolean isSafe(Node exp, boolean alwaysRuns, HashSet<String> written, boolean hasCall) {
+        switch (exp.type) {
+            case Exp:
+                return alwaysRuns || !exp.children.get(1).getLabelledValue().equals("/");
+
+            case INeg:
+            case BNeg:
+            case Integer:
+            case BGrd:
+            case Str:
+            case Identifier:
+            case Id3:
+            case This:
+                return true;
+
+            case Field:
+                if (hasCall || written.contains(exp.children.get(1).getLabelledValue())) {
+                    return false;
+                }
+                return alwaysRuns || exp.children.get(0).type == Node.NodeType.This;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether no variable read by an expression is written in the loop
+     */
+    private static boolean isInvariant(CMtd3 mtd, Node exp, HashSet<String> defined) {
+        switch (exp.type) {
+            case Identifier:
+            case Id3:
+                return mtd.getVarIndex(exp.getLabelledValue()) >= 0 && !defined.contains(exp.getLabelledValue());
+
+            case Field:
+                // Skip the field name
+                return LoopInvariantCodeMotion.isInvariant(mtd, exp.children.get(0), defined);
+
+            default:
+                for (Node child : exp.children) {
+                    if (!LoopInvariantCodeMotion.isInvariant(mtd, child, defined)) {
+                        return false;
+                    }
+                }
+                return true;
+        }
+    }
+
+    private static boolean fallsThrough(BasicBlock blk) {
+        switch (blk.stmts.get(blk.stmts.size() - 1).type) {
+            case Goto:
+            case ReturnT:
+            case ReturnV:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    private static void retarget(Stmt3 stmt, String from, String to) {
+        List<Node> children = stmt.children;
+        int idx = (stmt.type == Stmt3.StmtType.Goto) ? 0 : (stmt.type == Stmt3.StmtType.IfGoto) ? 1 : -1;
+
+        if (idx >= 0 && children.get(idx).getLabelledValue().equals(from)) {
+            children.set(idx, new Node(to));
+        }
+    }
+
+    private static Stmt3 newGoto(String lbl) {
+        Stmt3 jump = new Stmt3(Stmt3.StmtType.Goto);
+        jump.children.add(new Node(lbl));
+        return jump;
+    }
+}
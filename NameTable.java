@@ -0,0 +1,81 @@
+/**
+ * Intern table for identifiers and class names.
+ *
+ * Names are looked up straight from the lexer's buffer, so a name
+ * is only turned into a String the first time it is seen. The Strings
+ * handed out are the JVM interned ones, which means every later phase
+ * shares a single instance per name and reference comparisons against
+ * string literals are well defined.
+ */
+class NameTable {
+    private String[] names = new String[256];
+    private int size = 0;
+
+    public String intern(char[] buf, int start, int length) {
+        // Same hash as String.hashCode(), which Strings cache
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+
+        int mask = names.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String name = names[i];
+
+            if (name == null) {
+                name = new String(buf, start, length).intern();
+                names[i] = name;
+
+                if (++size * 2 > names.length) {
+                    this.grow();
+                }
+
+                return name;
+            }
+
+            if (name.hashCode() == hash && NameTable.matches(name, buf, start, length)) {
+                return name;
+            }
+        }
+    }
+
+    public String intern(String name) {
+        return this.intern(name.toCharArray(), 0, name.length());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+
+        for (String name : old) {
+            if (name == null) {
+                continue;
+            }
+
+            int i = name.hashCode() & mask;
+            while (names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = name;
+        }
+    }
+
+    private static boolean matches(String name, char[] buf, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != buf[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
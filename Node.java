@@ -1,3 +1,5 @@
+import java_cup.runtime.ComplexSymbolFactory.Location;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -24,6 +26,10 @@ class Node {
     public Node parent;
     public ArrayList<Node> children;
 
+    // Source span, only set on nodes built straight from tokens
+    public Location left;
+    public Location right;
+
     public enum NodeType {
         Program(NodeType.getSingleNodeStringify()),
         Id3(NodeType.getSingleNodeStringify()),
@@ -187,6 +193,50 @@ class Node {
       children.add(0, child);
     }
 
+    public Node at(Location left, Location right) {
+      this.left = left;
+      this.right = right;
+      return this;
+    }
+
+    /**
+     * Leftmost source location of this node,
+     * falls back to the first child that has one.
+     */
+    public Location getLeft() {
+      if (this.left != null) {
+        return this.left;
+      }
+
+      for (Node child : this.children) {
+        Location loc = child.getLeft();
+        if (loc != null) {
+          return loc;
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * Rightmost source location of this node,
+     * falls back to the last child that has one.
+     */
+    public Location getRight() {
+      if (this.right != null) {
+        return this.right;
+      }
+
+      for (int i = this.children.size() - 1; i >= 0; i--) {
+        Location loc = this.children.get(i).getRight();
+        if (loc != null) {
+          return loc;
+        }
+      }
+
+      return null;
+    }
+
     public String getLabelledValue() {
       if (this.children.size() > 0) {
         return this.children.get(0).data;
@@ -1,38 +1,302 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Peephole optimizer for ARM
- * Runs till there are no changes to the code
+ *
+ * Slides a window over the instructions of a method and tries every
+ * registered rule at each position. After a rewrite only the positions
+ * whose window could have changed are revisited (through a worklist),
+ * and since every rewrite removes an instruction, a method is done in
+ * time linear in its length.
  */
 class Peephole {
-    public static String run(String asm) {
-        String lastPass = "";
-        String curPass = asm;
-
-        String[][] peepholes = new String[][] {
-            // Removes two moves to one if possible
-            new String[] {
-                "\\tmov(.*?),(.*?)(?:[\\r\\n]|\\r\\n)\\tmov(.*?),\\1",
-                "\tmov$3,$2"
-            },
-            // Remove store to same location as an immediately preceding load
-            new String[] {
-                "\\tldr(.*?),\\[(.*?),(.*?)\\](?:[\\r\\n]|\\r\\n)\\tstr\\1,\\[\\2,\\3\\]",
-                "\tldr$1,[$2,$3]"
-            },
-            // Remove load to same location as an immediately preceding store
-            new String[] {
-                "\\tstr(.*?),\\[(.*?),(.*?)\\](?:[\\r\\n]|\\r\\n)\\tldr\\1,\\[\\2,\\3\\]",
-                "\tstr$1,[$2,$3]"
-            },
-        };
-
-        while (!lastPass.equals(curPass)) {
-            lastPass = curPass;
-
-            for (String[] peephole : peepholes) {
-                curPass = curPass.replaceAll(peephole[0], peephole[1]);
-            }
-        }
-
-        return lastPass;
-    }
-}
\ No newline at end of file
+    /**
+     * A rewrite of the instructions at the start of a window
+     */
+    interface Rule {
+        /**
+         * Returns true if the instructions were changed
+         */
+        boolean apply(Window w);
+    }
+
+    static class RuleEntry {
+        public final String name;
+        public final int size;
+        public final Rule rule;
+
+        // Rewrites done by the rule so far, over all compilations
+        public final LongAdder hits = new LongAdder();
+
+        public RuleEntry(String name, int size, Rule rule) {
+            this.name = name;
+            this.size = size;
+            this.rule = rule;
+        }
+    }
+
+    private static final ArrayList<RuleEntry> RULES = new ArrayList<>();
+
+    // Number of instructions the largest rule looks at
+    private static int maxSize = 1;
+
+    /**
+     * Registers a rule that looks at (at most) size instructions
+     */
+    public static synchronized void register(String name, int size, Rule rule) {
+        RULES.add(new RuleEntry(name, size, rule));
+        maxSize = Math.max(maxSize, size);
+    }
+
+    static {
+        Peephole.register("fold-move", 2, Peephole::foldMove);
+        Peephole.register("store-after-load", 2, Peephole::storeAfterLoad);
+        Peephole.register("load-after-store", 2, Peephole::loadAfterStore);
+        Peephole.register("store-after-store", 2, Peephole::storeAfterStore);
+    }
+
+    /**
+     * Window over the instructions still left, starting at a position
+     */
+    static class Window {
+        private ArmInstr[] code;
+        private int[] next;
+        private int[] prev;
+        private int pos;
+
+        private Window(ArmInstr[] code) {
+            this.code = code;
+            this.next = new int[code.length];
+            this.prev = new int[code.length];
+
+            for (int i = 0; i < code.length; i++) {
+                next[i] = i + 1;
+                prev[i] = i - 1;
+            }
+        }
+
+        /**
+         * Returns the idx-th instruction of the window, or null
+         * if the method ends before that
+         */
+        public ArmInstr get(int idx) {
+            int i = this.indexOf(idx);
+            return (i < code.length) ? code[i] : null;
+        }
+
+        public void set(int idx, ArmInstr instr) {
+            code[this.indexOf(idx)] = instr;
+        }
+
+        public void remove(int idx) {
+            int i = this.indexOf(idx);
+            code[i] = null;
+
+            if (prev[i] >= 0) {
+                next[prev[i]] = next[i];
+            }
+            if (next[i] < code.length) {
+                prev[next[i]] = prev[i];
+            }
+
+            if (i == pos) {
+                pos = next[i];
+            }
+        }
+
+        private int indexOf(int idx) {
+            int i = pos;
+            for (int k = 0; k < idx && i < code.length; k++) {
+                i = next[i];
+            }
+
+            return i;
+        }
+    }
+
+    public static ArrayList<ArmInstr> run(List<ArmInstr> instrs) {
+        Window w = new Window(instrs.toArray(new ArmInstr[0]));
+
+        // Positions to look at, the earliest one on top.
+        // A position is never queued twice.
+        int[] worklist = new int[w.code.length];
+        int top = 0;
+        for (int i = w.code.length - 1; i >= 0; i--) {
+            worklist[top++] = i;
+        }
+        boolean[] queued = new boolean[w.code.length];
+        Arrays.fill(queued, true);
+
+        while (top > 0) {
+            int pos = worklist[--top];
+            queued[pos] = false;
+
+            if (w.code[pos] == null) {
+                continue;
+            }
+
+            for (RuleEntry entry : RULES) {
+                w.pos = pos;
+
+                if (!entry.rule.apply(w)) {
+                    continue;
+                }
+
+                entry.hits.increment();
+
+                // Revisit every window that now sees something new
+                int back = (w.code[pos] != null) ? pos : w.prev[pos];
+                for (int k = 0; k < maxSize && back >= 0; k++) {
+                    if (!queued[back]) {
+                        queued[back] = true;
+                        worklist[top++] = back;
+                    }
+
+                    back = w.prev[back];
+                }
+
+                break;
+            }
+        }
+
+        ArrayList<ArmInstr> result = new ArrayList<>(w.code.length);
+        for (ArmInstr instr : w.code) {
+            if (instr != null) {
+                result.add(instr);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Hits of every rule, one per line
+     */
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (RuleEntry entry : RULES) {
+            sb.append(String.format("%-20s %d\n", entry.name, entry.hits.sum()));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * mov X, <src>     (or mvn, or ldr of a constant)
+     * mov Y, X         (X handed over to Y)
+     * becomes
+     * mov Y, <src>
+     */
+    private static boolean foldMove(Window w) {
+        ArmInstr first = w.get(0);
+        ArmInstr second = w.get(1);
+
+        if (second == null
+            || !Peephole.setsRegister(first) || first.cond != ArmInstr.Cond.AL
+            || second.op != ArmInstr.Op.MOV || second.cond != ArmInstr.Cond.AL
+            || !second.transfer
+            || !first.operands[0].isReg()
+            || !first.operands[0].name.equals(second.operands[1].name)) {
+            return false;
+        }
+
+        ArmInstr folded = new ArmInstr(first.op, second.operands[0], first.operands[1]);
+        folded.spaced = first.spaced;
+        folded.transfer = first.transfer;
+
+        w.set(0, folded);
+        w.remove(1);
+        return true;
+    }
+
+    /**
+     * Whether an instruction only puts its one source into a register
+     */
+    private static boolean setsRegister(ArmInstr instr) {
+        switch (instr.op) {
+            case MOV:
+            case MVN:
+                return true;
+
+            case LDR:
+                return instr.operands[1].kind == ArmInstr.Operand.Kind.LITERAL;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * ldr X, [B, #o]
+     * str X, [B, #o]   (stores back what was just loaded)
+     */
+    private static boolean storeAfterLoad(Window w) {
+        ArmInstr first = w.get(0);
+        ArmInstr second = w.get(1);
+
+        if (second == null
+            || first.op != ArmInstr.Op.LDR || second.op != ArmInstr.Op.STR
+            || !Peephole.sameAccess(first, second)
+            // The load changed the base
+            || first.operands[0].name.equals(first.operands[1].name)) {
+            return false;
+        }
+
+        w.remove(1);
+        return true;
+    }
+
+    /**
+     * str X, [B, #o]
+     * ldr X, [B, #o]   (loads what was just stored)
+     */
+    private static boolean loadAfterStore(Window w) {
+        ArmInstr first = w.get(0);
+        ArmInstr second = w.get(1);
+
+        if (second == null
+            || first.op != ArmInstr.Op.STR || second.op != ArmInstr.Op.LDR
+            || !Peephole.sameAccess(first, second)) {
+            return false;
+        }
+
+        w.remove(1);
+        return true;
+    }
+
+    /**
+     * str X, [B, #o]
+     * str X, [B, #o]   (stores the same thing again)
+     */
+    private static boolean storeAfterStore(Window w) {
+        ArmInstr first = w.get(0);
+        ArmInstr second = w.get(1);
+
+        if (second == null
+            || first.op != ArmInstr.Op.STR || second.op != ArmInstr.Op.STR
+            || !Peephole.sameAccess(first, second)) {
+            return false;
+        }
+
+        w.remove(1);
+        return true;
+    }
+
+    /**
+     * Same condition, register and memory location
+     */
+    private static boolean sameAccess(ArmInstr first, ArmInstr second) {
+        ArmInstr.Operand firstMem = first.operands[1];
+        ArmInstr.Operand secondMem = second.operands[1];
+
+        return first.cond == second.cond
+            && first.operands[0].name.equals(second.operands[0].name)
+            && firstMem.kind == ArmInstr.Operand.Kind.MEM
+            && secondMem.kind == ArmInstr.Operand.Kind.MEM
+            && firstMem.name.equals(secondMem.name)
+            && firstMem.value == secondMem.value;
+    }
+}
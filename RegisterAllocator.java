@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Linear scan register allocator for the variables of a method
+ *
+ * Every variable gets one live interval over the statements of the
+ * method, from the first to the last point where it is live or
+ * written (so an interval covers a whole loop if the variable is live
+ * around it).
+ * Intervals are handed registers in order of their start, and when
+ * none is free, the one that ends last is spilled to its stack slot.
+ *
+ * Only the callee-saved registers v1-v5 are handed out, so variables
+ * stay in their register across calls. r0-r3 are left to CodeGen for
+ * arguments, return values and scratch.
+ */
+class RegisterAllocator {
+    static final int[] REGISTERS = { 4, 5, 6, 7, 8 };
+
+    /**
+     * Where the variables of a method live
+     */
+    static class Allocation {
+        // Register of every variable (by CMtd3.getVarIndex), -1 for the stack
+        public int[] registers;
+
+        // Registers given to at least one variable
+        public BitSet usedRegisters = new BitSet();
+
+        public Allocation(int numVars) {
+            this.registers = new int[numVars];
+            Arrays.fill(this.registers, -1);
+        }
+
+        public int getRegister(int varIdx) {
+            return (varIdx >= 0 && varIdx < registers.length) ? registers[varIdx] : -1;
+        }
+    }
+
+    public static Allocation allocate(CMtd3 cmtd, List<BasicBlock> blocks) {
+        int numVars = cmtd.getNumVars();
+        Allocation alloc = new Allocation(numVars);
+
+        /**
+         * Statement i has two points:
+         * 2i before it (where its operands are read)
+         * and 2i + 1 after it (where its result is written)
+         */
+        int[] start = new int[numVars];
+        int[] end = new int[numVars];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+
+        int pos = 0;
+        for (BasicBlock blk : blocks) {
+            BitSet[] live = blk.getLiveSets();
+
+            for (int i = 0; i < blk.stmts.size(); i++, pos += 2) {
+                RegisterAllocator.cover(live[i], pos, start, end);
+                RegisterAllocator.cover(live[i + 1], pos + 1, start, end);
+
+                // A dead store still writes the register of its variable
+                int def = blk.getDef(blk.stmts.get(i));
+                if (def >= 0) {
+                    start[def] = Math.min(start[def], pos + 1);
+                    end[def] = Math.max(end[def], pos + 1);
+                }
+            }
+        }
+
+        ArrayList<Integer> intervals = new ArrayList<>();
+        for (int v = 0; v < numVars; v++) {
+            if (end[v] >= 0) {
+                intervals.add(v);
+            }
+        }
+        intervals.sort((a, b) -> (start[a] != start[b]) ? Integer.compare(start[a], start[b]) : Integer.compare(a, b));
+
+        // Intervals holding a register, by increasing end
+        ArrayList<Integer> active = new ArrayList<>();
+        BitSet free = new BitSet();
+        for (int reg : REGISTERS) {
+            free.set(reg);
+        }
+
+        for (int v : intervals) {
+            // Expire intervals that ended before this one starts
+            while (!active.isEmpty() && end[active.get(0)] < start[v]) {
+                free.set(alloc.registers[active.remove(0)]);
+            }
+
+            if (!free.isEmpty()) {
+                alloc.registers[v] = free.nextSetBit(0);
+                free.clear(alloc.registers[v]);
+                RegisterAllocator.insertByEnd(active, v, end);
+                continue;
+            }
+
+            // Spill whichever ends last
+            int last = active.get(active.size() - 1);
+            if (end[last] > end[v]) {
+                alloc.registers[v] = alloc.registers[last];
+                alloc.registers[last] = -1;
+                active.remove(active.size() - 1);
+                RegisterAllocator.insertByEnd(active, v, end);
+            }
+        }
+
+        for (int reg : alloc.registers) {
+            if (reg >= 0) {
+                alloc.usedRegisters.set(reg);
+            }
+        }
+
+        return alloc;
+    }
+
+    static void cover(BitSet live, int pos, int[] start, int[] end) {
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            start[v] = Math.min(start[v], pos);
+            end[v] = Math.max(end[v], pos);
+        }
+    }
+
+    private static void insertByEnd(ArrayList<Integer> active, int v, int[] end) {
+        int i = active.size();
+        while (i > 0 && end[active.get(i - 1)] > end[v]) {
+            i--;
+        }
+
+        active.add(i, v);
+    }
+}
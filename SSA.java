@@ -0,0 +1,748 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Static single assignment form for the IR3 of a method
+ *
+ * construct gives every write of a variable its own version ("x$1",
+ * "x$2", ...), with phi statements where versions meet (Cytron et al,
+ * pruned by liveness). The value a variable has on entry keeps the
+ * plain name, so formals still arrive where CodeGen expects them.
+ * Every block starts with a label in SSA form, which is how a phi
+ * knows which block each of its values comes from.
+ *
+ * destruct goes back to ordinary IR3: the versions a phi connects
+ * share one name unless they interfere, and only the phi values left
+ * over become copies at the end of the previous blocks.
+ */
+class SSA {
+    /**
+     * Dominator tree of the blocks reachable from the first one
+     * (Cooper, Harvey and Kennedy)
+     */
+    static class DominatorTree {
+        // Reachable blocks, in reverse postorder
+        public ArrayList<BasicBlock> blocks = new ArrayList<>();
+        public HashMap<BasicBlock, Integer> order = new HashMap<>();
+
+        // Immediate dominator of every block (-1 for the first)
+        public int[] idom;
+        public ArrayList<ArrayList<Integer>> children = new ArrayList<>();
+
+        // Dominance frontier of every block
+        public BitSet[] frontier;
+
+        public DominatorTree(BasicBlock entry) {
+            ArrayList<BasicBlock> postorder = new ArrayList<>();
+            HashSet<BasicBlock> visited = new HashSet<>();
+            ArrayDeque<BasicBlock> stack = new ArrayDeque<>();
+            ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+
+            stack.push(entry);
+            nextChild.push(0);
+            visited.add(entry);
+
+            while (!stack.isEmpty()) {
+                BasicBlock blk = stack.peek();
+                int i = nextChild.pop();
+
+                if (i < blk.next.size()) {
+                    nextChild.push(i + 1);
+                    BasicBlock nxt = blk.next.get(i);
+                    if (visited.add(nxt)) {
+                        stack.push(nxt);
+                        nextChild.push(0);
+                    }
+                } else {
+                    postorder.add(stack.pop());
+                }
+            }
+
+            for (int i = postorder.size() - 1; i >= 0; i--) {
+                order.put(postorder.get(i), blocks.size());
+                blocks.add(postorder.get(i));
+            }
+
+            int n = blocks.size();
+            idom = new int[n];
+            Arrays.fill(idom, -1);
+            idom[0] = 0;
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+
+                for (int b = 1; b < n; b++) {
+                    int newIdom = -1;
+                    for (int p : this.getPrevious(b)) {
+                        if (idom[p] < 0) {
+                            continue;
+                        }
+                        newIdom = (newIdom < 0) ? p : this.intersect(p, newIdom);
+                    }
+
+                    if (newIdom != idom[b]) {
+                        idom[b] = newIdom;
+                        changed = true;
+                    }
+                }
+            }
+            idom[0] = -1;
+
+            for (int b = 0; b < n; b++) {
+                children.add(new ArrayList<>());
+            }
+            for (int b = 1; b < n; b++) {
+                children.get(idom[b]).add(b);
+            }
+
+            frontier = new BitSet[n];
+            for (int b = 0; b < n; b++) {
+                frontier[b] = new BitSet();
+            }
+            for (int b = 1; b < n; b++) {
+                ArrayList<Integer> prevs = this.getPrevious(b);
+                if (prevs.size() < 2) {
+                    continue;
+                }
+
+                for (int p : prevs) {
+                    for (int runner = p; runner != idom[b]; runner = idom[runner]) {
+                        frontier[runner].set(b);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reachable previous blocks, each only once
+         */
+        public ArrayList<Integer> getPrevious(int b) {
+            LinkedHashSet<Integer> prevs = new LinkedHashSet<>();
+            for (BasicBlock prev : blocks.get(b).previous) {
+                Integer p = order.get(prev);
+                if (p != null) {
+                    prevs.add(p);
+                }
+            }
+
+            return new ArrayList<>(prevs);
+        }
+
+        public boolean dominates(int a, int b) {
+            while (b > a) {
+                b = idom[b];
+            }
+
+            return a == b;
+        }
+
+        private int intersect(int a, int b) {
+            while (a != b) {
+                while (a > b) {
+                    a = idom[a];
+                }
+                while (b > a) {
+                    b = idom[b];
+                }
+            }
+
+            return a;
+        }
+    }
+
+
+    public static void construct(CMtd3 mtd) {
+        // A first block nothing jumps back to, so it never needs phis
+        mtd.stmts.add(0, SSA.newLabel(mtd.getFreeLabel()));
+
+        // Label every block and drop the ones never reached
+        ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+        DominatorTree domTree = new DominatorTree(blocks.get(0));
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+
+        for (BasicBlock blk : blocks) {
+            if (!domTree.order.containsKey(blk)) {
+                continue;
+            }
+
+            if (blk.getLabel() == null) {
+                stmts.add(SSA.newLabel(mtd.getFreeLabel()));
+            }
+            stmts.addAll(blk.stmts);
+        }
+        mtd.stmts = stmts;
+
+        blocks = BasicBlock.fromCMtd3(mtd);
+        domTree = new DominatorTree(blocks.get(0));
+        int numBlocks = domTree.blocks.size();
+        int numVars = mtd.getNumVars();
+
+        BitSet[] defBlocks = new BitSet[numVars];
+        for (int v = 0; v < numVars; v++) {
+            defBlocks[v] = new BitSet();
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            BasicBlock blk = domTree.blocks.get(b);
+            for (Stmt3 stmt : blk.stmts) {
+                int def = blk.getDef(stmt);
+                if (def >= 0) {
+                    defBlocks[def].set(b);
+                }
+            }
+        }
+
+        // Phis go into the iterated dominance frontier, where the variable is live
+        for (int v = 0; v < numVars; v++) {
+            BitSet hasPhi = new BitSet();
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            for (int b = defBlocks[v].nextSetBit(0); b >= 0; b = defBlocks[v].nextSetBit(b + 1)) {
+                work.add(b);
+            }
+
+            while (!work.isEmpty()) {
+                BitSet df = domTree.frontier[work.poll()];
+
+                for (int d = df.nextSetBit(0); d >= 0; d = df.nextSetBit(d + 1)) {
+                    BasicBlock blk = domTree.blocks.get(d);
+                    if (hasPhi.get(d) || !blk.liveIn.get(v)) {
+                        continue;
+                    }
+
+                    hasPhi.set(d);
+                    blk.stmts.add(1, SSA.newPhi(domTree, d, SSA.getName(mtd, v), SSA.getType(mtd, v)));
+                    if (!defBlocks[v].get(d)) {
+                        work.add(d);
+                    }
+                }
+            }
+        }
+
+        Renamer renamer = new Renamer(mtd, domTree);
+        renamer.rename(0);
+
+        stmts = new ArrayList<>();
+        for (BasicBlock blk : blocks) {
+            stmts.addAll(blk.stmts);
+        }
+        mtd.stmts = stmts;
+
+        ArrayList<VarDecl3> vardecls = new ArrayList<>(mtd.vardecl3s);
+        vardecls.addAll(renamer.versions);
+        mtd.vardecl3s = vardecls;
+    }
+
+    /**
+     * Gives out the versions of the variables, going down the dominator tree
+     */
+    private static class Renamer {
+        CMtd3 mtd;
+        DominatorTree domTree;
+
+        // Version of every variable at the current point
+        ArrayList<ArrayDeque<String>> current = new ArrayList<>();
+        int[] numVersions;
+        ArrayList<VarDecl3> versions = new ArrayList<>();
+
+        Renamer(CMtd3 mtd, DominatorTree domTree) {
+            this.mtd = mtd;
+            this.domTree = domTree;
+            this.numVersions = new int[mtd.getNumVars()];
+
+            for (int v = 0; v < mtd.getNumVars(); v++) {
+                ArrayDeque<String> stack = new ArrayDeque<>();
+                stack.push(SSA.getName(mtd, v));
+                current.add(stack);
+            }
+        }
+
+        void rename(int b) {
+            BasicBlock blk = domTree.blocks.get(b);
+            ArrayList<Integer> defined = new ArrayList<>();
+
+            for (Stmt3 stmt : blk.stmts) {
+                if (stmt.type != Stmt3.StmtType.Phi) {
+                    SSA.replaceUses(mtd, stmt, name -> current.get(mtd.getVarIndex(name)).peek());
+                }
+
+                int def = blk.getDef(stmt);
+                if (def < 0) {
+                    continue;
+                }
+
+                String version = String.format("%s$%d", SSA.getName(mtd, def), ++numVersions[def]);
+                versions.add(new VarDecl3(SSA.getType(mtd, def), version));
+
+                stmt.children.set(0, SSA.renamed(stmt.children.get(0), version));
+                current.get(def).push(version);
+                defined.add(def);
+            }
+
+            String lbl = blk.getLabel();
+            for (BasicBlock nxt : new LinkedHashSet<>(blk.next)) {
+                for (Stmt3 phi : nxt.stmts) {
+                    if (phi.type != Stmt3.StmtType.Phi) {
+                        continue;
+                    }
+
+                    List<Node> args = phi.children.get(1).children;
+                    List<Node> labels = phi.children.get(2).children;
+                    for (int i = 0; i < args.size(); i++) {
+                        if (labels.get(i).getLabelledValue().equals(lbl)) {
+                            int v = mtd.getVarIndex(args.get(i).getLabelledValue());
+                            args.set(i, SSA.renamed(args.get(i), current.get(v).peek()));
+                        }
+                    }
+                }
+            }
+
+            for (int child : domTree.children.get(b)) {
+                this.rename(child);
+            }
+
+            for (int def : defined) {
+                current.get(def).pop();
+            }
+        }
+    }
+
+    public static void destruct(CMtd3 mtd) {
+        ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+        int numVars = mtd.getNumVars();
+        int numFormals = mtd.fmllist3.size();
+
+        /**
+         * A variable interferes with everything live after it is written,
+         * and the values live on entry interfere with each other
+         */
+        BitSet[] interference = new BitSet[numVars];
+        for (int v = 0; v < numVars; v++) {
+            interference[v] = new BitSet();
+        }
+
+        BitSet used = new BitSet();
+        SSA.interfere(interference, blocks.get(0).liveIn, blocks.get(0).liveIn);
+        for (BasicBlock blk : blocks) {
+            BitSet[] live = blk.getLiveSets();
+            used.or(blk.liveIn);
+
+            for (int i = 0; i < blk.stmts.size(); i++) {
+                int def = blk.getDef(blk.stmts.get(i));
+                if (def < 0) {
+                    continue;
+                }
+
+                BitSet defs = new BitSet();
+                defs.set(def);
+                SSA.interfere(interference, defs, live[i + 1]);
+                used.set(def);
+            }
+        }
+
+        // Merge the versions a phi connects, as long as they don't interfere
+        int[] parent = new int[numVars];
+        BitSet[] members = new BitSet[numVars];
+        for (int v = 0; v < numVars; v++) {
+            parent[v] = v;
+            members[v] = new BitSet();
+            members[v].set(v);
+        }
+
+        for (Stmt3 stmt : mtd.stmts) {
+            if (stmt.type != Stmt3.StmtType.Phi) {
+                continue;
+            }
+
+            int dest = SSA.find(parent, mtd.getVarIndex(stmt.children.get(0).getLabelledValue()));
+            for (Node arg : stmt.children.get(1).children) {
+                int v = SSA.isVariable(mtd, arg) ? mtd.getVarIndex(arg.getLabelledValue()) : -1;
+                if (v < 0) {
+                    continue;
+                }
+
+                int src = SSA.find(parent, v);
+                if (src == dest || interference[dest].intersects(members[src])) {
+                    continue;
+                }
+
+                parent[src] = dest;
+                members[dest].or(members[src]);
+                interference[dest].or(interference[src]);
+            }
+        }
+
+        /**
+         * Name every group, preferring the plain names, then the name it
+         * was versioned from (taking in the group that has it already
+         * if they don't interfere)
+         */
+        String[] names = new String[numVars];
+        HashMap<String, Integer> holders = new HashMap<>();
+        for (int v = 0; v < numVars; v++) {
+            String name = SSA.getName(mtd, v);
+            if ((v < numFormals || used.get(v)) && !name.contains("$")) {
+                names[SSA.find(parent, v)] = name;
+                holders.put(name, SSA.find(parent, v));
+            }
+        }
+
+        for (int v = numFormals; v < numVars; v++) {
+            int root = SSA.find(parent, v);
+            if (!used.get(v) || names[root] != null) {
+                continue;
+            }
+
+            String name = SSA.getName(mtd, v);
+            String base = name.substring(0, name.indexOf('$'));
+            if (!holders.containsKey(base)) {
+                names[root] = base;
+                holders.put(base, root);
+                continue;
+            }
+
+            int holder = SSA.find(parent, holders.get(base));
+            if (interference[holder].intersects(members[root])) {
+                names[root] = name;
+                holders.put(name, root);
+                continue;
+            }
+
+            parent[root] = holder;
+            members[holder].or(members[root]);
+            interference[holder].or(interference[root]);
+        }
+
+        // Declared in the order of the variables they were versioned from
+        int[] first = new int[numVars];
+        Arrays.fill(first, Integer.MAX_VALUE);
+        for (int v = used.nextSetBit(numFormals); v >= 0; v = used.nextSetBit(v + 1)) {
+            String name = SSA.getName(mtd, v);
+            int base = name.contains("$") ? mtd.getVarIndex(name.substring(0, name.indexOf('$'))) : v;
+            int root = SSA.find(parent, v);
+            first[root] = Math.min(first[root], base);
+        }
+
+        ArrayList<Integer> roots = new ArrayList<>();
+        for (int v = numFormals; v < numVars; v++) {
+            // (a group with a formal in it keeps the formal)
+            if (first[v] != Integer.MAX_VALUE && SSA.find(parent, v) == v && mtd.getVarIndex(names[v]) >= numFormals) {
+                roots.add(v);
+            }
+        }
+        roots.sort((a, b) -> (first[a] != first[b]) ? Integer.compare(first[a], first[b]) : Integer.compare(a, b));
+
+        ArrayList<VarDecl3> vardecls = new ArrayList<>();
+        for (int root : roots) {
+            vardecls.add(new VarDecl3(SSA.getType(mtd, root), names[root]));
+        }
+
+        UnaryOperator<String> rename = name -> names[SSA.find(parent, mtd.getVarIndex(name))];
+        for (BasicBlock blk : blocks) {
+            for (Stmt3 stmt : blk.stmts) {
+                SSA.replaceUses(mtd, stmt, rename);
+                if (stmt.type == Stmt3.StmtType.Phi) {
+                    SSA.replaceIn(mtd, stmt.children.get(1), rename);
+                }
+
+                if (blk.getDef(stmt) >= 0) {
+                    Node dest = stmt.children.get(0);
+                    stmt.children.set(0, SSA.renamed(dest, rename.apply(dest.getLabelledValue())));
+                }
+            }
+        }
+
+        mtd.vardecl3s = vardecls;
+        SSA.removePhis(mtd);
+    }
+
+    /**
+     * Turns the phis that are left into copies at the end of the
+     * previous blocks, splitting the edges out of a conditional branch
+     */
+    private static void removePhis(CMtd3 mtd) {
+        ArrayList<BasicBlock> blocks = BasicBlock.fromCMtd3(mtd);
+        HashMap<String, BasicBlock> labelled = new HashMap<>();
+        for (BasicBlock blk : blocks) {
+            labelled.put(blk.getLabel(), blk);
+        }
+
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock blk = blocks.get(b);
+            BasicBlock fall = (b + 1 < blocks.size()) ? blocks.get(b + 1) : null;
+            Stmt3 last = blk.stmts.get(blk.stmts.size() - 1);
+
+            for (Stmt3 stmt : blk.stmts) {
+                if (stmt.type != Stmt3.StmtType.Phi && stmt != last) {
+                    stmts.add(stmt);
+                }
+            }
+
+            switch (last.type) {
+                case IfGoto: {
+                    BasicBlock taken = labelled.get(last.children.get(1).getLabelledValue());
+                    ArrayList<Stmt3> takenCopies = SSA.getCopies(mtd, blk, taken);
+
+                    if (takenCopies.isEmpty()) {
+                        stmts.add(last);
+                    } else {
+                        String lbl = mtd.getFreeLabel();
+                        last.children.set(1, new Node(lbl));
+                        stmts.add(last);
+                    }
+
+                    if (fall != null) {
+                        stmts.addAll(SSA.getCopies(mtd, blk, fall));
+                    }
+
+                    if (!takenCopies.isEmpty()) {
+                        if (fall != null) {
+                            stmts.add(SSA.newGoto(fall.getLabel()));
+                        }
+                        stmts.add(SSA.newLabel(last.children.get(1).getLabelledValue()));
+                        stmts.addAll(takenCopies);
+                        stmts.add(SSA.newGoto(taken.getLabel()));
+                    }
+                    break;
+                }
+
+                case Goto:
+                    stmts.addAll(SSA.getCopies(mtd, blk, labelled.get(last.children.get(0).getLabelledValue())));
+                    stmts.add(last);
+                    break;
+
+                case ReturnT:
+                case ReturnV:
+                    stmts.add(last);
+                    break;
+
+                default:
+                    if (last.type != Stmt3.StmtType.Phi) {
+                        stmts.add(last);
+                    }
+                    if (fall != null) {
+                        stmts.addAll(SSA.getCopies(mtd, blk, fall));
+                    }
+                    break;
+            }
+        }
+
+        mtd.stmts = stmts;
+    }
+
+    /**
+     * The copies the phis of blk need when coming from prev, in an order
+     * where no value is overwritten before it's read
+     */
+    private static ArrayList<Stmt3> getCopies(CMtd3 mtd, BasicBlock prev, BasicBlock blk) {
+        ArrayList<String> dests = new ArrayList<>();
+        ArrayList<Node> srcs = new ArrayList<>();
+        HashMap<String, String> notes = new HashMap<>();
+        String lbl = prev.getLabel();
+
+        for (Stmt3 phi : blk.stmts) {
+            if (phi.type != Stmt3.StmtType.Phi) {
+                continue;
+            }
+
+            String dest = phi.children.get(0).getLabelledValue();
+            List<Node> args = phi.children.get(1).children;
+            List<Node> labels = phi.children.get(2).children;
+            for (int i = 0; i < args.size(); i++) {
+                if (labels.get(i).getLabelledValue().equals(lbl) && !args.get(i).getLabelledValue().equals(dest)) {
+                    dests.add(dest);
+                    srcs.add(args.get(i));
+                    notes.put(dest, phi.children.get(0).note);
+                }
+            }
+        }
+
+        ArrayList<Stmt3> copies = new ArrayList<>();
+        while (!dests.isEmpty()) {
+            int ready = 0;
+            while (ready < dests.size() && SSA.isRead(mtd, srcs, dests.get(ready))) {
+                ready++;
+            }
+
+            if (ready < dests.size()) {
+                String dest = dests.remove(ready);
+                copies.add(SSA.newCopy(SSA.newVariable(dest, notes.get(dest)), srcs.remove(ready)));
+                continue;
+            }
+
+            // Only cycles left, keep one value aside
+            String dest = dests.get(0);
+            String type = SSA.getType(mtd, mtd.getVarIndex(dest));
+            String temp = mtd.addTemporary(type);
+            copies.add(SSA.newCopy(SSA.newVariable(temp, type), SSA.newVariable(dest, type)));
+
+            for (int i = 0; i < srcs.size(); i++) {
+                if (SSA.isVariable(mtd, srcs.get(i)) && srcs.get(i).getLabelledValue().equals(dest)) {
+                    srcs.set(i, SSA.newVariable(temp, type));
+                }
+            }
+        }
+
+        return copies;
+    }
+
+    private static boolean isRead(CMtd3 mtd, List<Node> srcs, String name) {
+        for (Node src : srcs) {
+            if (SSA.isVariable(mtd, src) && src.getLabelledValue().equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void interfere(BitSet[] interference, BitSet defs, BitSet live) {
+        for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+            for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+                if (v != d) {
+                    interference[d].set(v);
+                    interference[v].set(d);
+                }
+            }
+        }
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+
+        return v;
+    }
+
+    /**
+     * Replaces the variables read by a statement (but not the values of a phi)
+     */
+    static void replaceUses(CMtd3 mtd, Stmt3 stmt, UnaryOperator<String> rename) {
+        switch (stmt.type) {
+            case LAssign:
+                stmt.children.set(1, SSA.replaceIn(mtd, stmt.children.get(1), rename));
+                break;
+
+            case FAssign:
+                // Skip the field name
+                stmt.children.set(0, SSA.replaceIn(mtd, stmt.children.get(0), rename));
+                stmt.children.set(2, SSA.replaceIn(mtd, stmt.children.get(2), rename));
+                break;
+
+            case Call:
+                // Skip the method name
+                SSA.replaceIn(mtd, stmt.children.get(1), rename);
+                break;
+
+            case IfGoto:
+            case PrintLn:
+            case ReturnT:
+                stmt.children.set(0, SSA.replaceIn(mtd, stmt.children.get(0), rename));
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    static Node replaceIn(CMtd3 mtd, Node node, UnaryOperator<String> rename) {
+        switch (node.type) {
+            case Identifier:
+            case Id3:
+                if (!SSA.isVariable(mtd, node)) {
+                    return node;
+                }
+                return SSA.renamed(node, rename.apply(node.getLabelledValue()));
+
+            case Call:
+                // Skip the method name
+                SSA.replaceIn(mtd, node.children.get(1), rename);
+                return node;
+
+            case Field:
+                // Skip the field name
+                node.children.set(0, SSA.replaceIn(mtd, node.children.get(0), rename));
+                return node;
+
+            default:
+                for (int i = 0; i < node.children.size(); i++) {
+                    node.children.set(i, SSA.replaceIn(mtd, node.children.get(i), rename));
+                }
+                return node;
+        }
+    }
+
+    static boolean isVariable(CMtd3 mtd, Node node) {
+        return (node.type == Node.NodeType.Identifier || node.type == Node.NodeType.Id3)
+            && mtd.getVarIndex(node.getLabelledValue()) >= 0;
+    }
+
+    private static String getName(CMtd3 mtd, int v) {
+        int numFormals = mtd.fmllist3.size();
+        return (v < numFormals) ? mtd.fmllist3.get(v).id : mtd.vardecl3s.get(v - numFormals).id;
+    }
+
+    private static String getType(CMtd3 mtd, int v) {
+        int numFormals = mtd.fmllist3.size();
+        return (v < numFormals) ? mtd.fmllist3.get(v).type : mtd.vardecl3s.get(v - numFormals).type;
+    }
+
+    private static Stmt3 newPhi(DominatorTree domTree, int b, String name, String type) {
+        Stmt3 phi = new Stmt3(Stmt3.StmtType.Phi);
+        Node args = new Node(Node.NodeType.ExpList);
+        Node labels = new Node(Node.NodeType.ExpList);
+
+        for (int p : domTree.getPrevious(b)) {
+            args.add(SSA.newVariable(name, type));
+            labels.add(new Node(domTree.blocks.get(p).getLabel()));
+        }
+
+        phi.children.add(SSA.newVariable(name, type));
+        phi.children.add(args);
+        phi.children.add(labels);
+        return phi;
+    }
+
+    private static Stmt3 newCopy(Node dest, Node src) {
+        Stmt3 copy = new Stmt3(Stmt3.StmtType.LAssign);
+        copy.children.add(dest);
+        copy.children.add(src);
+        return copy;
+    }
+
+    /**
+     * The variables are typed by their note, like the ones from IR3Gen
+     */
+    private static Node newVariable(String name, String type) {
+        Node var = new Node(Node.NodeType.Id3, name);
+        var.note = type;
+        return var;
+    }
+
+    private static Node renamed(Node var, String name) {
+        Node res = new Node(var.type, name);
+        res.note = var.note;
+        return res;
+    }
+
+    private static Stmt3 newLabel(String lbl) {
+        Stmt3 label = new Stmt3(Stmt3.StmtType.Label);
+        label.children.add(new Node(lbl));
+        return label;
+    }
+
+    private static Stmt3 newGoto(String lbl) {
+        Stmt3 jump = new Stmt3(Stmt3.StmtType.Goto);
+        jump.children.add(new Node(lbl));
+        return jump;
+    }
+}
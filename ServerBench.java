@@ -0,0 +1,125 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the latency of compiling through a warm CompileServer
+ * against starting one JVM per file (what the Makefile does).
+ *
+ * Usage: java ServerBench [-r rounds] [dir or file]...
+ */
+class ServerBench {
+    public static void main(String[] args) throws Exception {
+        int rounds = 5;
+        ArrayList<String> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-r")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            inputs.addAll(Arrays.asList("testcases", "ta_testcase"));
+        }
+
+        CompileServer server = new CompileServer(0, Runtime.getRuntime().availableProcessors());
+        Thread serverThread = new Thread(server::serve);
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        List<File> files = Utils.collectSources(inputs);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            // Let the server warm up like a long running one would be
+            for (int i = 0; i < 20; i++) {
+                for (File file : files) {
+                    ServerBench.request(in, out, file);
+                }
+            }
+
+            System.out.format("%-28s %14s %14s %8s\n", "file", "jvm/file ms", "server ms", "speedup");
+
+            for (File file : files) {
+                ArrayList<Long> jvmTimes = new ArrayList<>();
+                ArrayList<Long> serverTimes = new ArrayList<>();
+
+                for (int i = 0; i < rounds; i++) {
+                    long start = System.nanoTime();
+                    ServerBench.spawn(file);
+                    jvmTimes.add(System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    ServerBench.request(in, out, file);
+                    serverTimes.add(System.nanoTime() - start);
+                }
+
+                double jvmMs = ServerBench.median(jvmTimes) / 1e6;
+                double serverMs = ServerBench.median(serverTimes) / 1e6;
+
+                System.out.format("%-28s %14.2f %14.2f %7.1fx\n",
+                    file.getPath(), jvmMs, serverMs, jvmMs / serverMs);
+            }
+
+            out.write("quit\n");
+            out.flush();
+        }
+
+        server.close();
+    }
+
+    private static void spawn(File file) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(
+            new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp", System.getProperty("java.class.path"),
+            "Parser", file.getPath()
+        );
+        File sink = File.createTempFile("bench", ".out");
+        pb.redirectOutput(sink);
+        pb.redirectError(sink);
+        pb.start().waitFor();
+        sink.delete();
+    }
+
+    /**
+     * Sends a path request and reads the whole reply
+     */
+    private static boolean request(BufferedReader in, Writer out, File file) throws IOException {
+        out.write(String.format("path %s\n", file.getAbsolutePath()));
+        out.flush();
+
+        boolean success = in.readLine().equals("ok");
+
+        for (int i = 0; i < 3; i++) {
+            String[] header = in.readLine().split(" ");
+            char[] content = new char[Integer.parseInt(header[1])];
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        }
+
+        return success;
+    }
+
+    private static double median(List<Long> times) {
+        Collections.sort(times);
+        return times.get(times.size() / 2);
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.HashMap;
+
+/**
+ * An interned list of parameter types.
+ *
+ * Signatures form a trie rooted at the empty signature, so the
+ * signature of a call is found by following its argument types
+ * one by one, without building the comma-joined string.
+ * Being interned, signatures compare by identity, and each
+ * gets a dense id in the order it is first seen.
+ */
+class Signature {
+    public final int id;
+    public final Type[] params;
+
+    private final String text;
+    private HashMap<Type, Signature> next = new HashMap<>();
+
+    public Signature(int id, Type[] params) {
+        this.id = id;
+        this.params = params;
+
+        String[] names = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            names[i] = params[i].name;
+        }
+        this.text = String.join(",", names);
+    }
+
+    public Signature get(Type param) {
+        return next.get(param);
+    }
+
+    public void put(Type param, Signature sig) {
+        next.put(param, sig);
+    }
+
+    /**
+     * Parameter types joined by underscores, as used in mangled names
+     */
+    public String getMangledName() {
+        return text.replace(',', '_');
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
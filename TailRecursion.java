@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tail recursion elimination on the IR3 of a method
+ *
+ * A method that returns what calling itself (on this) returns, or that
+ * calls itself right before returning nothing, doesn't need a new frame
+ * for the call: the arguments are copied into the formals (through
+ * temporaries, as they can read each other) and it jumps back to its
+ * start, which leaves a loop for the other passes to work on.
+ * Other calls in tail position are left to CodeGen (see fromTailCall).
+ */
+class TailRecursion {
+    public static void run(CMtd3 mtd) {
+        ArrayList<Stmt3> stmts = new ArrayList<>();
+        String start = null;
+
+        for (int i = 0; i < mtd.stmts.size(); i++) {
+            Stmt3 stmt = mtd.stmts.get(i);
+            Stmt3 next = (i + 1 < mtd.stmts.size()) ? mtd.stmts.get(i + 1) : null;
+
+            Node call = TailRecursion.getSelfCall(mtd, stmt, next);
+            if (call == null) {
+                stmts.add(stmt);
+                continue;
+            }
+
+            if (start == null) {
+                start = mtd.getFreeLabel();
+            }
+
+            // Skip the receiver, which is this
+            List<Node> args = call.children.get(1).children;
+            ArrayList<String> temps = new ArrayList<>();
+            for (int a = 1; a < args.size(); a++) {
+                String temp = mtd.addTemporary(mtd.fmllist3.get(a).type);
+                temps.add(temp);
+                stmts.add(TailRecursion.newCopy(temp, mtd.fmllist3.get(a).type, args.get(a)));
+            }
+
+            for (int a = 1; a < args.size(); a++) {
+                VarDecl3 fml = mtd.fmllist3.get(a);
+                Node temp = new Node(Node.NodeType.Id3, temps.get(a - 1));
+                temp.note = fml.type;
+                stmts.add(TailRecursion.newCopy(fml.id, fml.type, temp));
+            }
+
+            Stmt3 jump = new Stmt3(Stmt3.StmtType.Goto);
+            jump.children.add(new Node(start));
+            stmts.add(jump);
+
+            if (next != null) {
+                // The return is replaced too
+                i++;
+            }
+        }
+
+        if (start != null) {
+            Stmt3 label = new Stmt3(Stmt3.StmtType.Label);
+            label.children.add(new Node(start));
+            stmts.add(0, label);
+            mtd.stmts = stmts;
+        }
+    }
+
+    /**
+     * The call a statement makes to the method itself on this, if the
+     * statement after it returns what the call returns, or null
+     */
+    private static Node getSelfCall(CMtd3 mtd, Stmt3 stmt, Stmt3 next) {
+        Node call;
+
+        if (stmt.type == Stmt3.StmtType.LAssign && stmt.children.get(1).type == Node.NodeType.Call) {
+            call = stmt.children.get(1);
+            if (next == null || next.type != Stmt3.StmtType.ReturnT
+                || !next.children.get(0).getLabelledValue().equals(stmt.children.get(0).getLabelledValue())) {
+                return null;
+            }
+        } else if (stmt.type == Stmt3.StmtType.Call) {
+            call = new Node(Node.NodeType.Call, stmt.children.get(0), stmt.children.get(1));
+            if (next != null && next.type != Stmt3.StmtType.ReturnV) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        List<Node> args = call.children.get(1).children;
+        if (!call.children.get(0).getLabelledValue().equals(mtd.id)
+            || !args.get(0).getLabelledValue().equals("this")) {
+            return null;
+        }
+
+        return call;
+    }
+
+    private static Stmt3 newCopy(String dest, String type, Node src) {
+        Node var = new Node(Node.NodeType.Id3, dest);
+        var.note = type;
+
+        Stmt3 copy = new Stmt3(Stmt3.StmtType.LAssign);
+        copy.children.add(var);
+        copy.children.add(src);
+        return copy;
+    }
+}
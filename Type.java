@@ -0,0 +1,39 @@
+/**
+ * A JLite type as seen by the typechecker.
+ *
+ * Primitive types (and the typechecker's sentinels) are singletons,
+ * class types are interned per compilation by TypecheckerState.getType,
+ * so types can always be compared by identity. Every type also has
+ * a dense id, primitives first.
+ */
+class Type {
+    public static final Type INVALID = new Type(Utils.ParserTypes.INVALID.getValue(), 0);
+    public static final Type METHOD = new Type(Utils.ParserTypes.METHOD.getValue(), 1);
+    public static final Type NULL = new Type("null", 2);
+    public static final Type BOOL = new Type(Utils.ParserTypes.BOOL.getValue(), 3);
+    public static final Type INT = new Type(Utils.ParserTypes.INT.getValue(), 4);
+    public static final Type STRING = new Type(Utils.ParserTypes.STRING.getValue(), 5);
+    public static final Type VOID = new Type(Utils.ParserTypes.VOID.getValue(), 6);
+
+    public static final Type[] PRIMITIVES = { INVALID, METHOD, NULL, BOOL, INT, STRING, VOID };
+
+    public final String name;
+    public final int id;
+
+    // Descriptor of a declared class, null for anything else
+    public CDesc desc = null;
+
+    public Type(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public boolean isPrimitive() {
+        return id < PRIMITIVES.length;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
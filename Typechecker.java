@@ -0,0 +1,570 @@
+import java_cup.runtime.ComplexSymbolFactory.Location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Typechecks a parsed JLite AST.
+ *
+ * Walks the Node tree in the same order as the parser reduces it,
+ * so the type stack and the errors reported come out the same way
+ * as they would if the checks ran during parsing.
+ * Also annotates the tree for IR3 generation (notes, msigs and
+ * the implicit "this" in front of fields).
+ */
+class Typechecker {
+    private Compilation ctx;
+    private TypecheckerState state;
+
+    public Typechecker(Compilation ctx) {
+        this.ctx = ctx;
+        this.state = ctx.state;
+    }
+
+    public void run(Node program) {
+        state.initTypecheckPhase();
+
+        for (Node cdecl : program.children) {
+            this.checkClass(cdecl);
+        }
+    }
+
+    private void checkClass(Node cdecl) {
+        for (Node part : cdecl.children.get(1).children) {
+            if (part.type != Node.NodeType.MDecl) {
+                continue;
+            }
+
+            this.checkMethod(part);
+            state.methodptr++;
+        }
+
+        state.classptr++;
+    }
+
+    private void checkMethod(Node mdecl) {
+        Node type = mdecl.children.get(0);
+        Node body = mdecl.children.get(mdecl.children.size() - 1);
+        ArrayList<Node> fmls = mdecl.children.get(2).children;
+
+        // Formals are collected right to left by the grammar
+        state.curFml = new HashMap<String, Type>();
+        for (int i = fmls.size() - 1; i >= 0; i--) {
+            Node fml = fmls.get(i);
+            state.curFml.put(fml.children.get(1).getLabelledValue(), state.getType(fml.children.get(0).data));
+        }
+
+        state.curVDecls = new HashMap<String, Type>();
+        for (Node part : body.children) {
+            if (part.type == Node.NodeType.VDecl) {
+                state.curVDecls.put(part.children.get(1).getLabelledValue(), state.getType(part.children.get(0).data));
+            }
+        }
+
+        this.checkStmts(body.children.get(body.children.size() - 1));
+
+        if (mdecl.note == "_main_") {
+            state.typestack.pollFirst();
+            return;
+        }
+
+        Type rtype = state.typestack.pop();
+
+        if (rtype != state.getType(type.data)) {
+            ctx.addError(
+                "%s method expected return type '%s', but got '%s'!",
+                type.getLeft(),
+                body.getRight(),
+                mdecl.children.get(1).getLabelledValue(),
+                type.data,
+                rtype
+            );
+        }
+    }
+
+    /**
+     * The type of a list of statements is the type of its last statement
+     */
+    private void checkStmts(Node stmts) {
+        for (int i = 0; i < stmts.children.size(); i++) {
+            stmts.children.set(i, this.checkStmt(stmts.children.get(i)));
+
+            if (i > 0) {
+                Type rtype = state.typestack.pop();
+                state.typestack.pollFirst();
+                state.typestack.push(rtype);
+            }
+        }
+    }
+
+    private Node checkStmt(Node stmt) {
+        switch (stmt.type) {
+            case Cond: {
+                Node e = this.checkChild(stmt, 0);
+                Node s1 = stmt.children.get(1);
+                Node s2 = stmt.children.get(2);
+                this.checkStmts(s1);
+                this.checkStmts(s2);
+
+                Type s2type = state.typestack.pop();
+                Type s1type = state.typestack.pop();
+                Type etype = state.typestack.pop();
+
+                if (etype != Type.BOOL) {
+                    ctx.addError(
+                        "If conditin has type %s, expected bool",
+                        e.getLeft(),
+                        e.getRight(),
+                        etype
+                    );
+                } else if (s1type != s2type) {
+                    ctx.addError(
+                        "If-then block and else block must be of same type! If-then: %s, Else: %s",
+                        s1.getLeft(),
+                        s2.getRight(),
+                        s1type,
+                        s2type
+                    );
+                }
+
+                state.typestack.push(s2type);
+                return stmt;
+            }
+
+            case While: {
+                Node e = this.checkChild(stmt, 0);
+                Node s1 = stmt.children.get(1);
+
+                if (s1.children.size() == 0) {
+                    state.typestack.push(Type.VOID);
+                } else {
+                    this.checkStmts(s1);
+                }
+
+                Type stype = state.typestack.pop();
+                Type etype = state.typestack.pop();
+
+                if (s1.children.size() == 0) {
+                    ctx.addError(
+                        "While body cannot be empty!",
+                        e.getLeft(),
+                        e.getRight()
+                    );
+                }
+
+                if (etype != Type.BOOL) {
+                    ctx.addError(
+                        "While condition has type %s, expected Bool",
+                        e.getLeft(),
+                        e.getRight(),
+                        etype
+                    );
+                }
+
+                state.typestack.push(stype);
+                return stmt;
+            }
+
+            case Read: {
+                Node id = stmt.children.get(0);
+                this.idMdTypecheck(id.getLeft(), id.data);
+                Type itype = state.typestack.pop();
+
+                if (itype != Type.BOOL && itype != Type.STRING && itype != Type.INT) {
+                    ctx.addError(
+                        "Readln identifier must be of type bool, string or int! Got %s!",
+                        id.getLeft(),
+                        id.getRight(),
+                        itype
+                    );
+                }
+
+                state.typestack.push(Type.VOID);
+                return stmt;
+            }
+
+            case Print: {
+                Node e = this.checkChild(stmt, 0);
+                Type etype = state.typestack.pop();
+
+                if (etype != Type.BOOL && etype != Type.STRING && etype != Type.INT) {
+                    ctx.addError(
+                        "Println argument must be of type bool, string or int! Got %s!",
+                        e.getLeft(),
+                        e.getRight(),
+                        etype
+                    );
+                }
+
+                state.typestack.push(Type.VOID);
+                return stmt;
+            }
+
+            case VarAss: {
+                Node lNode = stmt.children.get(0);
+                Node rNode = this.checkChild(stmt, 1);
+                String id = lNode.data;
+
+                Type rtype = state.typestack.pop();
+                this.idMdTypecheck(lNode.getLeft(), id);
+                Type ltype = state.typestack.pop();
+
+                if (ltype != rtype && rtype != Type.NULL) {
+                    ctx.addError(
+                        "Trying to assign value of type %s to variable %s with type %s",
+                        lNode.getLeft(),
+                        rNode.getRight(),
+                        rtype,
+                        id,
+                        ltype
+                    );
+                }
+
+                lNode.note = ltype.name;
+                rNode.note = rtype.name;
+
+                state.typestack.push(Type.VOID);
+
+                if (state.isWithinClass) {
+                    // Prepend "this"
+                    Node thisNode = new Node(Node.NodeType.This, "this");
+                    thisNode.note = state.getCurrentClass();
+                    return new Node(Node.NodeType.FdAss, thisNode, lNode, rNode);
+                }
+
+                return stmt;
+            }
+
+            case FdAss: {
+                Node a = this.checkChild(stmt, 0);
+                Node id = stmt.children.get(1);
+                Node e = this.checkChild(stmt, 2);
+
+                Type rtype = state.typestack.pop();
+                this.clsFdMdTypecheck(a.getLeft(), state.typestack.pop(), id.data);
+                Type ltype = state.typestack.pop();
+
+                if (ltype != rtype && rtype != Type.NULL) {
+                    ctx.addError(
+                        "Trying to assign value of type %s to %s.%s with type %s",
+                        a.getLeft(),
+                        e.getRight(),
+                        rtype,
+                        a.toString(),
+                        id.toString(),
+                        ltype
+                    );
+                }
+
+                state.typestack.push(Type.VOID);
+                return stmt;
+            }
+
+            case Call:
+                return this.checkExp(stmt);
+
+            case RetT: {
+                Node e = this.checkChild(stmt, 0);
+                Type rtype = state.typestack.pop();
+
+                if (rtype != state.getType(state.getCurrentMethodReturnType())) {
+                    ctx.addError(
+                        "Return expression 'return %s;' is returning type %s, but method expects return type of %s!",
+                        e.getLeft(),
+                        e.getRight(),
+                        e,
+                        rtype,
+                        state.getCurrentMethodReturnType()
+                    );
+                }
+
+                state.typestack.push(rtype);
+                return stmt;
+            }
+
+            case RetV:
+                if (Type.VOID != state.getType(state.getCurrentMethodReturnType())) {
+                    ctx.addError(
+                        "Return expression 'return;' is returning type %s, but method expects return type of %s!",
+                        stmt.getLeft(),
+                        stmt.getRight(),
+                        Type.VOID,
+                        state.getCurrentMethodReturnType()
+                    );
+                }
+
+                state.typestack.push(Type.VOID);
+                return stmt;
+
+            default:
+                return stmt;
+        }
+    }
+
+    /**
+     * Typechecks the idx-th child of a node, replacing it
+     * if the check rewrote the expression.
+     */
+    private Node checkChild(Node parent, int idx) {
+        Node child = this.checkExp(parent.children.get(idx));
+        parent.children.set(idx, child);
+        return child;
+    }
+
+    private Node checkExp(Node exp) {
+        switch (exp.type) {
+            case Integer:
+                exp.note = "int";
+                state.typestack.push(Type.INT);
+                return exp;
+
+            case Str:
+                state.typestack.push(Type.STRING);
+                return exp;
+
+            case BGrd:
+                state.typestack.push(Type.BOOL);
+                return exp;
+
+            case Null:
+                state.typestack.push(Type.NULL);
+                return exp;
+
+            case INeg:
+            case BNeg:
+                this.checkChild(exp, 0);
+                return exp;
+
+            case Arith:
+                this.checkChild(exp, 0);
+                this.checkChild(exp, 2);
+                exp.note = this.arithTypecheck(exp, exp.getLeft(), Type.INT).name;
+                return exp;
+
+            case Rel:
+                this.checkChild(exp, 0);
+                this.checkChild(exp, 2);
+                exp.note = this.arithTypecheck(exp, exp.getLeft(), Type.BOOL).name;
+                return exp;
+
+            case BExpr:
+                this.checkChild(exp, 0);
+                this.checkChild(exp, 2);
+                exp.note = this.boolTypecheck(exp, exp.getLeft()).name;
+                return exp;
+
+            case Expr:
+                this.checkChild(exp, 0);
+                Type etype = state.typestack.pop();
+                state.typestack.push(etype);
+                exp.note = etype.name;
+                return exp;
+
+            case Field: {
+                Node a = this.checkChild(exp, 0);
+                exp.note = this.clsFdMdTypecheck(a.getLeft(), state.typestack.pop(), exp.children.get(1).data).name;
+                return exp;
+            }
+
+            case Call:
+                for (int i = 0; i < exp.children.size(); i++) {
+                    this.checkChild(exp, i);
+                }
+
+                MDesc mdesc = this.mdCallTypecheck(exp, exp.getLeft(), exp.children.size() - 1);
+                exp.note = (mdesc != null) ? mdesc.rtype.name : Type.INVALID.name;
+                exp.msig = (mdesc != null) ? mdesc.mangledName : "";
+                return exp;
+
+            case This:
+                state.typestack.push(state.getType(state.getCurrentClass()));
+                exp.note = state.getCurrentClass();
+                return exp;
+
+            case Identifier: {
+                exp.note = this.idMdTypecheck(exp.getLeft(), exp.data).name;
+
+                if (state.isWithinClass) {
+                    // Prepend ID
+                    Node thisNode = new Node(Node.NodeType.This, "this");
+                    thisNode.note = state.getCurrentClass();
+
+                    Node fieldNode = new Node(Node.NodeType.Field, thisNode, exp);
+                    fieldNode.note = exp.note;
+                    return fieldNode;
+                }
+
+                return exp;
+            }
+
+            case New: {
+                Node cname = exp.children.get(0);
+                Type c = state.getType(cname.data);
+                state.typestack.push(c);
+
+                if (c.desc == null) {
+                    state.typestack.push(c);
+                    ctx.addError(
+                        "Trying to create new instance of non-existent class %s!",
+                        cname.getLeft(),
+                        cname.getRight(),
+                        c
+                    );
+                }
+
+                return exp;
+            }
+
+            default:
+                return exp;
+        }
+    }
+
+    private Type clsFdMdTypecheck(Location loc, Type classname, String id) {
+        CDesc cdec = classname.desc;
+
+        if (cdec == null) {
+            ctx.addError(
+                "%s is not a valid class!",
+                loc,
+                loc,
+                classname
+            );
+            state.typestack.push(Type.INVALID);
+            return Type.INVALID;
+        }
+
+        Type fdtype = cdec.fds.getOrDefault(id, null);
+
+        if (fdtype != null) {
+            state.typestack.push(fdtype);
+            return fdtype;
+        }
+
+        // Check for msigs
+        HashMap<Signature, MDesc> msig = cdec.msigs.getOrDefault(id, null);
+
+        if (msig != null) {
+            state.typestack.push(Type.METHOD);
+            state.msigstack.push(msig);
+            return classname;
+        }
+
+        ctx.addError(
+            "%s is a not a valid identifier!",
+            loc,
+            loc,
+            id
+        );
+        state.typestack.push(Type.INVALID); // deque does not allow nulls
+        return Type.INVALID;
+    }
+
+    private Type idMdTypecheck(Location loc, String id) {
+        state.isWithinClass = false;
+        Type fdtype = state.curVDecls.getOrDefault(id, state.curFml.getOrDefault(id, null));
+
+        if (fdtype == null) {
+            // Check within class
+            state.isWithinClass = true;
+            return this.clsFdMdTypecheck(loc, state.getType(state.getCurrentClass()), id);
+        } else {
+            state.typestack.push(fdtype);
+            return fdtype;
+        }
+    }
+
+    /**
+     * Resolves a call, returns null if there is no such method
+     */
+    private MDesc mdCallTypecheck(Node line, Location loc, int numargs) {
+        Signature msig = this.getMsigFromStack(numargs);
+        Type itype = state.typestack.pollFirst();
+        if (itype != Type.METHOD) {
+            state.typestack.push(itype);
+            ctx.addError(
+                "Call %s is calling a non-callable object! Type: %s",
+                loc,
+                loc,
+                line,
+                itype
+            );
+            return null;
+        }
+
+        HashMap<Signature, MDesc> msigs = state.msigstack.pollFirst();
+        MDesc mdesc = (msig != null) ? msigs.get(msig) : null;
+
+        if (mdesc == null) {
+            state.typestack.push(Type.INVALID);
+            ctx.addError(
+                "Call %s is calling to a method that doesn't exist!",
+                loc,
+                loc,
+                line
+            );
+            return null;
+        }
+
+        state.typestack.push(mdesc.rtype);
+        return mdesc;
+    }
+
+    /**
+     * Pops the argument types of a call and looks up their signature,
+     * returns null if no method has been declared with it
+     */
+    private Signature getMsigFromStack(int length) {
+        Type[] params = new Type[length];
+
+        // populate backwards
+        for (int i = length - 1; i >= 0; i--) {
+            params[i] = state.typestack.pollFirst();
+        }
+
+        Signature sig = state.signatures.get(0);
+        for (int i = 0; i < length && sig != null; i++) {
+            sig = sig.get(params[i]);
+        }
+
+        return sig;
+    }
+
+    private Type arithTypecheck(Node var, Location loc, Type rtype) {
+        Type rsecond = state.typestack.pollFirst();
+        Type rfirst = state.typestack.pollFirst();
+        state.typestack.push(rtype);
+
+        if (rsecond != rfirst || rfirst != Type.INT) {
+            ctx.addError(
+                "Arithmetric operator in %s can only operate on int. Left type: %s, Right type: %s",
+                loc,
+                loc,
+                var,
+                rfirst,
+                rsecond
+            );
+        }
+
+        return rtype;
+    }
+
+    private Type boolTypecheck(Node var, Location loc) {
+        Type rsecond = state.typestack.pollFirst();
+        Type rfirst = state.typestack.pollFirst();
+        state.typestack.push(Type.BOOL);
+
+        if (rsecond != rfirst || rfirst != Type.BOOL) {
+            ctx.addError(
+                "Boolean operator in %s can only operate on bool. Left type: %s, Right type: %s",
+                loc,
+                loc,
+                var,
+                rfirst,
+                rsecond
+            );
+        }
+
+        return Type.BOOL;
+    }
+}
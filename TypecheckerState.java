@@ -1,6 +1,9 @@
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * An object that holds the state of
@@ -8,7 +11,14 @@ import java.util.HashMap;
  */
 class TypecheckerState {
     public HashMap<String, CDesc> classdescriptor;
-    public HashMap<String, String> localenv;
+    public HashMap<String, Type> localenv;
+
+    // Interned types, indexed by name and by id
+    public HashMap<String, Type> types = new HashMap<>();
+    public ArrayList<Type> typesById = new ArrayList<>();
+
+    // Interned signatures, indexed by id, the empty signature first
+    public ArrayList<Signature> signatures = new ArrayList<>();
 
     // Points to the current class that's being processed
     // Works because of leftmost derivation
@@ -18,21 +28,27 @@ class TypecheckerState {
     public ArrayList<Pair<String, String>> mnames;
 
     // Stack of types that are awaiting resolution
-    public ArrayDeque<String> typestack;
-    public ArrayDeque<HashMap<String, String>> msigstack;
+    public ArrayDeque<Type> typestack;
+    public ArrayDeque<HashMap<Signature, MDesc>> msigstack;
 
     // State indicators
-    public boolean secondrun = false;
     public boolean isWithinClass = false;
 
     // Temporaries
-    public ArrayList<String> fmlTypes;
-    public HashMap<String, String> curFml = new HashMap<String, String>();
-    public HashMap<String, String> curVDecls = new HashMap<String, String>();
+    public ArrayList<Type> fmlTypes;
+    public HashMap<String, Type> curFml = new HashMap<String, Type>();
+    public HashMap<String, Type> curVDecls = new HashMap<String, Type>();
 
     public TypecheckerState() {
         this.classdescriptor = new HashMap<String, CDesc>();
-        this.localenv = new HashMap<String, String>();
+        this.localenv = new HashMap<String, Type>();
+
+        for (Type t : Type.PRIMITIVES) {
+            this.types.put(t.name, t);
+            this.typesById.add(t);
+        }
+
+        this.signatures.add(new Signature(0, new Type[0]));
 
         this.cnames = new ArrayList<>();
         this.mnames = new ArrayList<>();
@@ -40,19 +56,64 @@ class TypecheckerState {
     }
 
     public void initTypeStacks() {
-        this.typestack = new ArrayDeque<String>();
-        this.msigstack = new ArrayDeque<HashMap<String, String>>();
+        this.typestack = new ArrayDeque<Type>();
+        this.msigstack = new ArrayDeque<HashMap<Signature, MDesc>>();
     }
 
     public void initTypecheckPhase() {
-        this.secondrun = true;
-        this.localenv = new HashMap<String, String>();
+        this.localenv = new HashMap<String, Type>();
         this.classptr = 0;
         this.methodptr = 0;
 
+        // Classes are only known in full after parsing
+        for (Map.Entry<String, CDesc> cdesc : this.classdescriptor.entrySet()) {
+            this.getType(cdesc.getKey()).desc = cdesc.getValue();
+        }
+
         this.initTypeStacks();
     }
 
+    /**
+     * Returns the type with the given name, creating
+     * a new class type the first time a name is seen
+     */
+    public Type getType(String name) {
+        Type type = this.types.get(name);
+
+        if (type == null) {
+            type = new Type(name, this.typesById.size());
+            this.types.put(name, type);
+            this.typesById.add(type);
+        }
+
+        return type;
+    }
+
+    /**
+     * Returns the signature with the given parameter types,
+     * interning it the first time it is seen
+     */
+    public Signature getSignature(List<Type> params) {
+        Signature sig = this.signatures.get(0);
+
+        for (Type param : params) {
+            Signature next = sig.get(param);
+
+            if (next == null) {
+                Type[] nextParams = Arrays.copyOf(sig.params, sig.params.length + 1);
+                nextParams[sig.params.length] = param;
+
+                next = new Signature(this.signatures.size(), nextParams);
+                sig.put(param, next);
+                this.signatures.add(next);
+            }
+
+            sig = next;
+        }
+
+        return sig;
+    }
+
     public String getCurrentClass() {
         return this.cnames.get(this.classptr);
     }
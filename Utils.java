@@ -1,3 +1,8 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Extremely useful Pair class
  */
@@ -40,20 +45,26 @@ class Utils {
         }
     }
 
-    public static String getMsigFromFmlNode(Node fmls) {
-        String[] fmlTypes = new String[fmls.children.size()];
-        for (int i = 0; i < fmls.children.size(); i++) {
-            fmlTypes[i] = fmls.children.get(i).children.get(0).toString();
-        }
-
-        return Utils.getLocalMsig(fmlTypes);
+    public static String addIndent(String str) {
+        return "  " + str.replaceAll("\n", "\n  ");
     }
 
-    public static String getLocalMsig(String... fmlTypes) {
-        return String.join(",", fmlTypes);
-    }
+    /**
+     * Expands a list of files and directories into the .j files in them
+     */
+    public static List<File> collectSources(List<String> inputs) {
+        ArrayList<File> files = new ArrayList<>();
 
-    public static String addIndent(String str) {
-        return "  " + str.replaceAll("\n", "\n  ");
+        for (String input : inputs) {
+            File f = new File(input);
+            File[] children = f.isDirectory() ? f.listFiles((dir, name) -> name.endsWith(".j")) : new File[] { f };
+
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        }
+
+        return files;
     }
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+import java.util.HashMap;
+
+/**
+ * Local value numbering on the IR3 of a method
+ *
+ * Every value computed in a block gets a number, keyed by its operator
+ * and the numbers of its operands (in a fixed order when the operator
+ * is commutative, and with a > b read as b < a). When a block computes
+ * a value it already has in a variable, the computation becomes a copy
+ * of that variable (for Coalescing.propagateCopies to read through).
+ *
+ * Field loads are numbered too, until the field is written or
+ * something is called.
+ */
+class ValueNumbering {
+    private CMtd3 mtd;
+    private int nextNumber = 0;
+
+    // Expression -> value number
+    private HashMap<String, Integer> numbers = new HashMap<>();
+
+    // Variable -> value number it holds
+    private HashMap<String, Integer> varNumbers = new HashMap<>();
+
+    // Value number -> a variable holding it
+    private HashMap<Integer, String> holders = new HashMap<>();
+
+    // Value number -> the literal it is
+    private HashMap<Integer, Node> literals = new HashMap<>();
+
+    // Bumped by every write to a field, and by every call
+    private HashMap<String, Integer> fieldVersions = new HashMap<>();
+    private int callVersion = 0;
+
+    private ValueNumbering(CMtd3 mtd) {
+        this.mtd = mtd;
+    }
+
+    public static void run(CMtd3 mtd) {
+        for (BasicBlock blk : BasicBlock.fromCMtd3(mtd)) {
+            ValueNumbering vn = new ValueNumbering(mtd);
+
+            for (Stmt3 stmt : blk.stmts) {
+                vn.number(stmt);
+            }
+        }
+    }
+
+    private void number(Stmt3 stmt) {
+        switch (stmt.type) {
+            case LAssign: {
+                String dest = stmt.children.get(0).getLabelledValue();
+                Node rhs = stmt.children.get(1);
+                int num;
+
+                if (rhs.type == Node.NodeType.Call || rhs.type == Node.NodeType.New) {
+                    if (rhs.type == Node.NodeType.Call) {
+                        callVersion++;
+                    }
+                    num = nextNumber++;
+                } else {
+                    num = this.reuse(stmt, 1, stmt.children.get(0));
+                }
+
+                this.assign(dest, num);
+                break;
+            }
+
+            case FAssign: {
+                int num = this.reuse(stmt, 2, null);
+                String field = stmt.children.get(1).getLabelledValue();
+                fieldVersions.merge(field, 1, Integer::sum);
+
+                // Reading the field back gives what was just written
+                numbers.put(this.getFieldKey(stmt.children.get(0), field), num);
+                break;
+            }
+
+            case Call:
+                callVersion++;
+                break;
+
+            case IfGoto:
+                this.reuse(stmt, 0, null);
+                break;
+
+            case ReadLn:
+            case Phi:
+                this.assign(stmt.children.get(0).getLabelledValue(), nextNumber++);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Numbers the expression at stmt.children[idx], and replaces it with
+     * a variable that already holds its value if there is one
+     * (note is the node to take the type from)
+     */
+    private int reuse(Stmt3 stmt, int idx, Node note) {
+        Node exp = stmt.children.get(idx);
+        String key = this.getKey(exp);
+        if (key == null) {
+            return this.getNumber(exp);
+        }
+
+        Integer num = numbers.get(key);
+        if (num == null) {
+            num = nextNumber++;
+            numbers.put(key, num);
+            return num;
+        }
+
+        String holder = holders.get(num);
+        if (holder != null && num.equals(varNumbers.get(holder))) {
+            Node var = new Node(Node.NodeType.Id3, holder);
+            var.note = (note != null) ? note.note : exp.note;
+            stmt.children.set(idx, var);
+        } else if (literals.containsKey(num)) {
+            // Such as a field read back after a literal was written to it
+            stmt.children.set(idx, literals.get(num));
+        }
+
+        return num;
+    }
+
+    private void assign(String var, int num) {
+        if (mtd.getVarIndex(var) < 0) {
+            return;
+        }
+
+        varNumbers.put(var, num);
+
+        String holder = holders.get(num);
+        if (holder == null || !Integer.valueOf(num).equals(varNumbers.get(holder))) {
+            holders.put(num, var);
+        }
+    }
+
+    /**
+     * Key of an expression that is worth numbering, or null for
+     * variables, literals, and what can't be reused
+     */
+    private String getKey(Node exp) {
+        switch (exp.type) {
+            case Exp: {
+                String op = exp.children.get(1).getLabelledValue();
+                int lhs = this.getNumber(exp.children.get(0));
+                int rhs = this.getNumber(exp.children.get(2));
+
+                switch (op) {
+                    case ">":
+                    case ">=":
+                        // a > b is b < a
+                        op = op.replace('>', '<');
+                        return String.format("%s %d %d", op, rhs, lhs);
+
+                    case "+":
+                    case "*":
+                    case "==":
+                    case "!=":
+                    case "&&":
+                    case "||":
+                        return String.format("%s %d %d", op, Math.min(lhs, rhs), Math.max(lhs, rhs));
+
+                    default:
+                        return String.format("%s %d %d", op, lhs, rhs);
+                }
+            }
+
+            case INeg:
+            case BNeg:
+                return String.format("%s %d", exp.type, this.getNumber(exp.children.get(0)));
+
+            case Field:
+                return this.getFieldKey(exp.children.get(0), exp.children.get(1).getLabelledValue());
+
+            default:
+                return null;
+        }
+    }
+
+    private String getFieldKey(Node obj, String field) {
+        return String.format(".%s %d %d %d",
+            field,
+            this.getNumber(obj),
+            fieldVersions.getOrDefault(field, 0),
+            callVersion
+        );
+    }
+
+    /**
+     * Number of an operand (a variable or a literal)
+     */
+    private int getNumber(Node node) {
+        switch (node.type) {
+            case Identifier:
+            case Id3:
+                if (mtd.getVarIndex(node.getLabelledValue()) >= 0) {
+                    return varNumbers.computeIfAbsent(node.getLabelledValue(), x -> nextNumber++);
+                }
+                return nextNumber++;
+
+            case This:
+                return varNumbers.computeIfAbsent("this", x -> nextNumber++);
+
+            case Integer:
+            case BGrd:
+            case Str:
+            case Null: {
+                int num = numbers.computeIfAbsent(node.type + " " + node.getLabelledValue(), x -> nextNumber++);
+                literals.putIfAbsent(num, node);
+                return num;
+            }
+
+            default: {
+                String key = this.getKey(node);
+                return (key == null) ? nextNumber++ : numbers.computeIfAbsent(key, x -> nextNumber++);
+            }
+        }
+    }
+}